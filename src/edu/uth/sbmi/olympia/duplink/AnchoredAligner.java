@@ -0,0 +1,434 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.util.*;
+
+import java.util.*;
+
+/**
+ * Local alignment over token ID sequences built on exact repeats (anchors)
+ * instead of a full Smith-Waterman matrix.  Anchors are chained in order in
+ * both sequences, the tokens between consecutive anchors are bridged by a
+ * global alignment, and the chain is extended at both ends as far as the
+ * score increases.  Only the small matrices of the bridges and extensions,
+ * at most {@link #getMaxGap} tokens on a side, are computed.  Scores are the
+ * same as in {@link TokenAligner}.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class AnchoredAligner {
+  private static final Log log = new Log(AnchoredAligner.class);
+  private static final byte UP_LEFT = 1;
+  private static final byte UP = 2;
+  private static final byte LEFT = 3;
+  private static final int USED = -1;
+
+  private final double gap;
+  private final double penalty;
+  private final int maxGap;
+  private final int[] sub1;
+  private final int[] sub2;
+  private final double[] scores;
+  private final byte[] dirs;
+  private byte[] ops = new byte[0];
+  private int numOps;
+  private int extLength1;
+  private int extLength2;
+  private long numCells = 0;
+
+  /**
+   * Creates a new <code>AnchoredAligner</code> with the given <var>gap</var>
+   * and <var>penalty</var> scores that bridges and extends anchors by at most
+   * <var>maxGap</var> tokens.
+   */
+  public AnchoredAligner(final double gap, final double penalty,
+                         final int maxGap) {
+    this.gap = gap;
+    this.penalty = penalty;
+    this.maxGap = maxGap;
+    sub1 = new int[maxGap];
+    sub2 = new int[maxGap];
+    scores = new double[(maxGap + 1) * (maxGap + 1)];
+    dirs = new byte[(maxGap + 1) * (maxGap + 1)];
+  }
+
+  /**
+   * Returns the maximum number of tokens bridged between, or extended beyond,
+   * anchors.
+   */
+  public int getMaxGap() {
+    return maxGap;
+  }
+
+  /**
+   * Returns the number of matrix cells computed so far.
+   */
+  public long getNumCells() {
+    return numCells;
+  }
+
+  /**
+   * Returns the non-overlapping alignments between the first
+   * <var>length1</var> tokens of <var>seq1</var> and the first
+   * <var>length2</var> tokens of <var>seq2</var> that are built on the given
+   * <var>anchors</var>, best chain first, with a score of at least
+   * <var>minScore</var>.  Each anchor is a <code>{start1, start2,
+   * length}</code> exact repeat, and the anchors must be ordered by
+   * <code>start2</code>.  The aligned tokens are overwritten in both arrays,
+   * as in {@link TokenAligner#alignMulti}.
+   */
+  public List<TokenAlignment> alignMulti(final int[] seq1, final int length1,
+                                         final int[] seq2, final int length2,
+                                         final List<int[]> anchors,
+                                         final double minScore) {
+    final List<int[]> active = new ArrayList<>();
+    for (final int[] anchor : anchors) {
+      assert anchor[0] + anchor[2] <= length1 && anchor[1] + anchor[2] <= length2;
+      active.add(anchor.clone());
+    }
+    // Tokens aligned by an earlier call, e.g. for another source run against
+    // the same destination, are already used
+    removeUsed(seq1, seq2, active);
+    final List<TokenAlignment> alignments = new ArrayList<>();
+    while (active.isEmpty() == false) {
+      final int[] chain = chain(seq1, seq2, active);
+      final TokenAlignment alignment = upperBound(seq1, length1, seq2, length2,
+          active, chain) < minScore ? null :
+          align(seq1, length1, seq2, length2, active, chain);
+      if (alignment != null && alignment.score >= minScore) {
+        alignments.add(alignment);
+        Arrays.fill(seq1, alignment.start1, alignment.end1, USED);
+        Arrays.fill(seq2, alignment.start2, alignment.end2, USED);
+        removeUsed(seq1, seq2, active);
+      }
+      else {
+        // None of its anchors makes a better chain
+        for (int i = chain.length - 1; i >= 0; i--) {
+          active.remove(chain[i]);
+        }
+      }
+    }
+    return alignments;
+  }
+
+  /**
+   * Returns the indexes (in order) of the anchors of the best chain, scored
+   * with a lower bound on the score of the bridges between anchors.
+   */
+  private int[] chain(final int[] seq1, final int[] seq2,
+                      final List<int[]> active) {
+    final int k = active.size();
+    final double[] best = new double[k];
+    final int[] prev = new int[k];
+    int maxLength = 0;
+    for (final int[] anchor : active) {
+      maxLength = Math.max(maxLength, anchor[2]);
+    }
+    int top = 0;
+    for (int i = 0; i < k; i++) {
+      final int[] a = active.get(i);
+      best[i] = a[2];
+      prev[i] = -1;
+      // Anchors are ordered by start2, so the earlier ones are too far away
+      for (int j = i - 1; j >= 0; j--) {
+        final int[] b = active.get(j);
+        if (b[1] + maxLength + maxGap < a[1]) {
+          break;
+        }
+        final int gap1 = a[0] - (b[0] + b[2]);
+        final int gap2 = a[1] - (b[1] + b[2]);
+        if (gap1 < 0 || gap2 < 0 || gap1 > maxGap || gap2 > maxGap ||
+            isUsed(seq1, b[0] + b[2], a[0]) ||
+            isUsed(seq2, b[1] + b[2], a[1])) {
+          continue;
+        }
+        final double score = best[j] + bridgeBound(gap1, gap2) + a[2];
+        if (score > best[i]) {
+          best[i] = score;
+          prev[i] = j;
+        }
+      }
+      if (best[i] > best[top]) {
+        top = i;
+      }
+    }
+    int length = 0;
+    for (int i = top; i >= 0; i = prev[i]) {
+      length++;
+    }
+    final int[] chain = new int[length];
+    for (int i = top; i >= 0; i = prev[i]) {
+      chain[--length] = i;
+    }
+    return chain;
+  }
+
+  /**
+   * Returns a lower bound on the score of the global alignment of
+   * <var>gap1</var> and <var>gap2</var> tokens: the better of substituting
+   * the shorter side and of deleting everything.
+   */
+  private double bridgeBound(final int gap1, final int gap2) {
+    return Math.max(penalty * Math.min(gap1, gap2) +
+                    gap * Math.abs(gap1 - gap2),
+                    gap * (gap1 + gap2));
+  }
+
+  /**
+   * Returns an upper bound on the score of the alignment of the given
+   * <var>chain</var>: every bridged or extended token pair matches.
+   */
+  private double upperBound(final int[] seq1, final int length1,
+                            final int[] seq2, final int length2,
+                            final List<int[]> active, final int[] chain) {
+    final int[] first = active.get(chain[0]);
+    final int[] last = active.get(chain[chain.length - 1]);
+    double bound = Math.min(free(seq1, first[0], -1, 0),
+                            free(seq2, first[1], -1, 0)) +
+                   Math.min(free(seq1, last[0] + last[2], 1, length1),
+                            free(seq2, last[1] + last[2], 1, length2));
+    for (int c = 0; c < chain.length; c++) {
+      final int[] anchor = active.get(chain[c]);
+      bound += anchor[2];
+      if (c > 0) {
+        final int[] prev = active.get(chain[c-1]);
+        final int gap1 = anchor[0] - (prev[0] + prev[2]);
+        final int gap2 = anchor[1] - (prev[1] + prev[2]);
+        bound += Math.min(gap1, gap2) + gap * Math.abs(gap1 - gap2);
+      }
+    }
+    return bound;
+  }
+
+  /**
+   * Returns the alignment of the given <var>chain</var> of anchors: its
+   * bridges and the extensions at both ends.
+   */
+  private TokenAlignment align(final int[] seq1, final int length1,
+                               final int[] seq2, final int length2,
+                               final List<int[]> active, final int[] chain) {
+    final int[] first = active.get(chain[0]);
+    final int[] last = active.get(chain[chain.length - 1]);
+    numOps = 0;
+
+    // Extend backwards from the first anchor
+    final int before1 = free(seq1, first[0], -1, 0);
+    final int before2 = free(seq2, first[1], -1, 0);
+    for (int i = 0; i < before1; i++) {
+      sub1[i] = seq1[first[0] - 1 - i];
+    }
+    for (int i = 0; i < before2; i++) {
+      sub2[i] = seq2[first[1] - 1 - i];
+    }
+    double score = fill(before1, before2, false);
+    final int start1 = first[0] - extLength1;
+    final int start2 = first[1] - extLength2;
+    // The backward extension is traced back in forward order already
+    traceBack(extLength1, extLength2, before2, false);
+
+    for (int c = 0; c < chain.length; c++) {
+      final int[] anchor = active.get(chain[c]);
+      if (c > 0) {
+        final int[] prev = active.get(chain[c-1]);
+        final int gap1 = anchor[0] - (prev[0] + prev[2]);
+        final int gap2 = anchor[1] - (prev[1] + prev[2]);
+        System.arraycopy(seq1, prev[0] + prev[2], sub1, 0, gap1);
+        System.arraycopy(seq2, prev[1] + prev[2], sub2, 0, gap2);
+        score += fill(gap1, gap2, true);
+        traceBack(gap1, gap2, gap2, true);
+      }
+      for (int i = 0; i < anchor[2]; i++) {
+        addOp(TokenAlignment.MATCH);
+      }
+      score += anchor[2];
+    }
+
+    // Extend forwards from the last anchor
+    final int end1 = last[0] + last[2];
+    final int end2 = last[1] + last[2];
+    final int after1 = free(seq1, end1, 1, length1);
+    final int after2 = free(seq2, end2, 1, length2);
+    System.arraycopy(seq1, end1, sub1, 0, after1);
+    System.arraycopy(seq2, end2, sub2, 0, after2);
+    score += fill(after1, after2, false);
+    final int extEnd1 = end1 + extLength1;
+    final int extEnd2 = end2 + extLength2;
+    traceBack(extLength1, extLength2, after2, true);
+
+    return new TokenAlignment(start1, extEnd1, start2, extEnd2, score,
+        Arrays.copyOf(ops, numOps));
+  }
+
+  /**
+   * Fills the global alignment matrix of the first <var>n1</var> tokens of
+   * <code>sub1</code> and the first <var>n2</var> tokens of
+   * <code>sub2</code>.  Returns the score of the full alignment if
+   * <var>global</var>, or else of the best (shortest on ties) prefix
+   * alignment, whose lengths are kept for {@link #traceBack}.
+   */
+  private double fill(final int n1, final int n2, final boolean global) {
+    final int cols = n2 + 1;
+    numCells += (long) (n1 + 1) * cols;
+    double best = 0.0;
+    extLength1 = 0;
+    extLength2 = 0;
+    scores[0] = 0.0;
+    for (int col = 1; col <= n2; col++) {
+      scores[col] = gap * col;
+      dirs[col] = LEFT;
+    }
+    for (int row = 1; row <= n1; row++) {
+      final int item1 = sub1[row - 1];
+      final int offset = row * cols;
+      scores[offset] = gap * row;
+      dirs[offset] = UP;
+      for (int col = 1; col <= n2; col++) {
+        final double match = scores[offset - cols + col - 1] +
+            (item1 == sub2[col - 1] ? 1.0 : penalty);
+        final double delete = scores[offset - cols + col] + gap;
+        final double insert = scores[offset + col - 1] + gap;
+        double score;
+        if (match >= delete && match >= insert) {
+          score = match;
+          dirs[offset + col] = UP_LEFT;
+        }
+        else if (delete >= insert) {
+          score = delete;
+          dirs[offset + col] = UP;
+        }
+        else {
+          score = insert;
+          dirs[offset + col] = LEFT;
+        }
+        scores[offset + col] = score;
+        if (score > best && global == false) {
+          best = score;
+          extLength1 = row;
+          extLength2 = col;
+        }
+      }
+    }
+    return global ? scores[n1 * cols + n2] : best;
+  }
+
+  /**
+   * Appends the operations from the start of the last filled matrix (with
+   * <var>n2</var> + 1 columns) to the cell (<var>row</var>, <var>col</var>),
+   * in forward order if <var>forward</var> and in reverse order otherwise.
+   */
+  private void traceBack(int row, int col, final int n2,
+                         final boolean forward) {
+    final int cols = n2 + 1;
+    final int from = numOps;
+    while (row > 0 || col > 0) {
+      final byte dir = dirs[row * cols + col];
+      if (dir == UP_LEFT) {
+        addOp(sub1[row - 1] == sub2[col - 1] ?
+            TokenAlignment.MATCH : TokenAlignment.SUBSTITUTE);
+        row--;
+        col--;
+      }
+      else if (dir == UP) {
+        addOp(TokenAlignment.DELETE);
+        row--;
+      }
+      else {
+        assert dir == LEFT : "unknown dir: " + dir;
+        addOp(TokenAlignment.INSERT);
+        col--;
+      }
+    }
+    if (forward) {
+      for (int i = from, j = numOps - 1; i < j; i++, j--) {
+        final byte swap = ops[i];
+        ops[i] = ops[j];
+        ops[j] = swap;
+      }
+    }
+  }
+
+  /**
+   * Appends an alignment operation.
+   */
+  private void addOp(final byte op) {
+    if (numOps == ops.length) {
+      ops = Arrays.copyOf(ops, Math.max(64, 2 * ops.length));
+    }
+    ops[numOps++] = op;
+  }
+
+  /**
+   * Returns the number of unused tokens, up to {@link #getMaxGap}, from
+   * <var>pos</var> in direction <var>step</var> before reaching
+   * <var>limit</var>.
+   */
+  private int free(final int[] seq, final int pos, final int step,
+                   final int limit) {
+    int n = 0;
+    while (n < maxGap) {
+      final int i = step < 0 ? pos - 1 - n : pos + n;
+      if ((step < 0 ? i < limit : i >= limit) || seq[i] == USED) {
+        break;
+      }
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Returns whether any of the tokens <code>[start, end)</code> is used.
+   */
+  private static boolean isUsed(final int[] seq, final int start,
+                                final int end) {
+    for (int i = start; i < end; i++) {
+      if (seq[i] == USED) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Shortens the anchors that overlap used tokens to their longest unused
+   * part, and removes those with none left.  The anchors stay ordered by
+   * <code>start2</code>.
+   */
+  private static void removeUsed(final int[] seq1, final int[] seq2,
+                                 final List<int[]> active) {
+    boolean shortened = false;
+    final Iterator<int[]> iter = active.iterator();
+    while (iter.hasNext()) {
+      final int[] anchor = iter.next();
+      int bestStart = 0;
+      int bestLength = 0;
+      int runStart = 0;
+      for (int i = 0; i <= anchor[2]; i++) {
+        if (i == anchor[2] || seq1[anchor[0] + i] == USED ||
+            seq2[anchor[1] + i] == USED) {
+          if (i - runStart > bestLength) {
+            bestStart = runStart;
+            bestLength = i - runStart;
+          }
+          runStart = i + 1;
+        }
+      }
+      if (bestLength == 0) {
+        iter.remove();
+      }
+      else if (bestLength < anchor[2]) {
+        anchor[0] += bestStart;
+        anchor[1] += bestStart;
+        anchor[2] = bestLength;
+        shortened = true;
+      }
+    }
+    if (shortened) {
+      Collections.sort(active, new Comparator<int[]>() {
+        @Override
+        public int compare(final int[] a1, final int[] a2) {
+          return Integer.compare(a1[1], a2[1]);
+        }
+      });
+    }
+  }
+
+}
@@ -0,0 +1,465 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.text.*;
+import edu.uth.sbmi.olympia.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * Command line functionality for building a {@link BoilerplateIndex} from a
+ * cohort of patient directories.  A shingle is boilerplate if it occurs in
+ * the notes of at least a given fraction of the patients; each patient is
+ * counted once, so the copy-forward text of a single patient never is.
+ * <p>
+ * Patients are read one at a time, and only the distinct shingle hashes of
+ * each patient are kept.  When they exceed the memory budget they are
+ * sorted, counted, and written to a temporary file as a run of
+ * <code>(hash, patients)</code> pairs; the runs are merged at the end.  So
+ * the memory used does not grow with the cohort, except for the boilerplate
+ * shingles themselves.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class BoilerplateBuilder {
+  private static final Log log = new Log(BoilerplateBuilder.class);
+  public static int DEFAULT_SHINGLE_LENGTH = 8;
+  public static double DEFAULT_MIN_FRACTION = 0.1;
+  public static int DEFAULT_MEMORY = 256;
+
+  public static void main(String[] argv) throws Exception {
+    argv = Config.init("olympia.properties", argv);
+
+    final Logger baseLogger = Logger.getLogger(BoilerplateBuilder.class.getName());
+    baseLogger.setUseParentHandlers(false);
+
+    final ConsoleHandler handler = new ConsoleHandler();
+    handler.setLevel(Level.ALL);
+    handler.setFormatter(new LogFormatter(false));
+    baseLogger.addHandler(handler);
+
+    final String argumentStructure =
+        "Command: duplink-boilerplate [cohort] [index] [parameters]\n" +
+        "    cohort:        [mandatory] directory with one document directory (see duplink) per patient\n" +
+        "    index:         [mandatory] output boilerplate index, for duplink --boilerplate\n" +
+        "    --shingle:     [optional]  number of consecutive tokens per shingle (default: " + DEFAULT_SHINGLE_LENGTH + "), must be >0\n" +
+        "    --minFraction: [optional]  fraction of the patients a shingle must occur in to be boilerplate (default: " +
+                                       DEFAULT_MIN_FRACTION + "), must be >0.0 and <=1.0.  At least 2 patients are always required.\n" +
+        "    --memory:      [optional]  memory budget in megabytes for shingles before they are written to temporary " +
+                                       "files (default: " + DEFAULT_MEMORY + "), must be >0\n" +
+        "    --tokenized:   [optional]  whether the text is already space-tokenized (default: " + RunDupLink.DEFAULT_TOKENIZED + "), if not " +
+                                       "the default Olympia tokenizer will be used instead. Value must be either 'true' or 'false'.\n" +
+        "    --logging:     [optional]  logging level, options: [FINE, FINER, FINEST]\n" +
+        "\n" +
+        "Example: duplink-boilerplate cohort/ boilerplate.idx --shingle 8 --minFraction 0.05\n" +
+        "\n" +
+        "The documents must be tokenized the same way (see --tokenized) as in the duplink runs that use the index.\n";
+
+    if (argv.length < 2 || argv.length % 2 != 0) {
+      log.severe("Improper number of arguments: {0}", argv.length);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+
+    final Place input = Place.fromFile(argv[0]);
+    if (input.isDirectory() == false) {
+      log.severe("Not a directory: {0}", input);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+    final List<Place> patients = new ArrayList<>();
+    for (final Place patientDir : input.getSortedChildren(Place.NAME_COMPARATOR)) {
+      if (patientDir.isDirectory() == false) {
+        log.warning("Not a patient directory, skipping: {0}", patientDir);
+      }
+      else {
+        patients.add(patientDir);
+      }
+    }
+    if (patients.isEmpty()) {
+      log.severe("No patient directories: {0}", input);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+
+    final Place output = Place.fromFile(argv[1]);
+    if (output.exists()) {
+      log.severe("Output file already exists: {0}", output);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+
+    int shingleLength = DEFAULT_SHINGLE_LENGTH;
+    double minFraction = DEFAULT_MIN_FRACTION;
+    long memory = DEFAULT_MEMORY;
+    boolean tokenized = RunDupLink.DEFAULT_TOKENIZED;
+    for (int i = 2; i < argv.length; i += 2) {
+      if (argv[i].equals("--shingle")) {
+        try {
+          shingleLength = Integer.valueOf(argv[i+1]);
+        }
+        catch (NumberFormatException nfe) {
+          log.severe("Invalid shingle value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        if (shingleLength <= 0) {
+          log.severe("Invalid shingle value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--minFraction")) {
+        try {
+          minFraction = Double.valueOf(argv[i+1]);
+        }
+        catch (NumberFormatException nfe) {
+          log.severe("Invalid minFraction value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        if (minFraction <= 0.0 || minFraction > 1.0) {
+          log.severe("Invalid minFraction value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--memory")) {
+        try {
+          memory = Long.valueOf(argv[i+1]);
+        }
+        catch (NumberFormatException nfe) {
+          log.severe("Invalid memory value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        if (memory <= 0) {
+          log.severe("Invalid memory value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--tokenized")) {
+        final String value = argv[i+1].toLowerCase();
+        if (value.equals("true")) {
+          tokenized = true;
+        }
+        else if (value.equals("false")) {
+          tokenized = false;
+        }
+        else {
+          log.severe("Invalid tokenized value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--logging")) {
+        final String value = argv[i+1].toUpperCase();
+        if (value.equals("FINE")) {
+          log.setLevel(Log.FINE);
+        }
+        else if (value.equals("FINER")) {
+          log.setLevel(Log.FINER);
+        }
+        else if (value.equals("FINEST")) {
+          log.setLevel(Log.FINEST);
+        }
+        else {
+          log.severe("Invalid logging value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else {
+        log.severe("Unknown argument: {0}", argv[i]);
+        log.severe("{0}", argumentStructure);
+        System.exit(1);
+      }
+    }
+    if (tokenized) {
+      Config.get("edu.uth.sbmi.olympia.text.annotator.TOKEN")
+            .set("edu.uth.sbmi.olympia.text.annotators.WhitespaceTokenizer");
+    }
+
+    final int minPatients = Math.max(2,
+        (int) Math.ceil(minFraction * patients.size()));
+    final BoilerplateIndex index;
+    try {
+      index = build(patients, shingleLength, minPatients,
+          memory * 1024 * 1024, argumentStructure);
+    }
+    catch (IOException ioe) {
+      log.severe("Could not use temporary file: {0}", ioe.getMessage());
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+      return;
+    }
+    try {
+      index.write(output);
+    }
+    catch (IOException ioe) {
+      log.severe("Could not write to file: {0}", output);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Returns the {@link BoilerplateIndex} of the shingles of
+   * <var>shingleLength</var> tokens that occur in at least
+   * <var>minPatients</var> of the given patient directories, holding about
+   * <var>memory</var> bytes of shingles before writing them to a temporary
+   * run.  Exits on any improper file.
+   */
+  static BoilerplateIndex build(final List<Place> patients,
+                                final int shingleLength,
+                                final int minPatients,
+                                final long memory,
+                                final String argumentStructure)
+      throws IOException {
+    final int capacity = (int) Math.min(Integer.MAX_VALUE - 8, memory / 8);
+    // The distinct shingles of the patients since the last run, concatenated
+    long[] buffer = new long[Math.min(1024, capacity)];
+    int size = 0;
+    long numShingles = 0;
+    final List<Place> runs = new ArrayList<>();
+    try {
+      for (final Place patientDir : patients) {
+        log.info("Patient: {0}", patientDir.getName());
+        long[] shingles = new long[0];
+        int numPatientShingles = 0;
+        for (final Place file :
+             patientDir.getSortedChildren(Place.NUMERIC_NAME_COMPARATOR)) {
+          final Document document = RunDupLink.readDocument(file,
+              argumentStructure);
+          final List<Token> tokens = document.getTokens();
+          final long[] wordHashes = new long[tokens.size()];
+          for (int i = 0; i < wordHashes.length; i++) {
+            wordHashes[i] = BoilerplateIndex.hashWord(tokens.get(i).asRawString());
+          }
+          final long[] documentShingles = BoilerplateIndex.getShingles(
+              wordHashes, wordHashes.length, shingleLength);
+          if (numPatientShingles + documentShingles.length > shingles.length) {
+            shingles = Arrays.copyOf(shingles, Math.max(2 * shingles.length,
+                numPatientShingles + documentShingles.length));
+          }
+          System.arraycopy(documentShingles, 0, shingles, numPatientShingles,
+              documentShingles.length);
+          numPatientShingles += documentShingles.length;
+        }
+        numShingles += numPatientShingles;
+        final int distinct = sortDistinct(shingles, numPatientShingles);
+        if (size > 0 && size + distinct > capacity) {
+          runs.add(writeRun(buffer, size));
+          size = 0;
+        }
+        if (size + distinct > buffer.length) {
+          // A single patient may exceed the budget on its own
+          buffer = Arrays.copyOf(buffer, Math.max(size + distinct,
+              (int) Math.min(capacity, 2L * buffer.length)));
+        }
+        System.arraycopy(shingles, 0, buffer, size, distinct);
+        size += distinct;
+      }
+
+      // A shingle occurring in n patients is counted n times
+      final Merger merger;
+      if (runs.isEmpty()) {
+        merger = new Merger(buffer, size);
+      }
+      else {
+        runs.add(writeRun(buffer, size));
+        buffer = null;
+        merger = new Merger(runs);
+      }
+      long[] hashes = new long[1024];
+      int numHashes = 0;
+      long numDistinct = 0;
+      try {
+        while (merger.next()) {
+          numDistinct++;
+          if (merger.count >= minPatients) {
+            if (numHashes == hashes.length) {
+              hashes = Arrays.copyOf(hashes, 2 * hashes.length);
+            }
+            hashes[numHashes++] = merger.hash;
+          }
+        }
+      }
+      finally {
+        merger.close();
+      }
+      log.info("Boilerplate: {0} of {1} distinct shingles ({2} in total) " +
+          "occur in at least {3} of {4} patients", numHashes, numDistinct,
+          numShingles, minPatients, patients.size());
+      if (runs.isEmpty() == false) {
+        log.info("Merged {0} temporary runs", runs.size());
+      }
+      return new BoilerplateIndex(shingleLength, patients.size(),
+          Arrays.copyOf(hashes, numHashes));
+    }
+    finally {
+      for (final Place run : runs) {
+        run.delete();
+      }
+    }
+  }
+
+  /**
+   * Sorts the first <var>length</var> values of the array and moves the
+   * distinct ones to its front.  Returns their number.
+   */
+  private static int sortDistinct(final long[] values, final int length) {
+    Arrays.sort(values, 0, length);
+    int distinct = 0;
+    for (int i = 0; i < length; i++) {
+      if (i == 0 || values[i] != values[i-1]) {
+        values[distinct++] = values[i];
+      }
+    }
+    return distinct;
+  }
+
+  /**
+   * Sorts the first <var>length</var> shingle hashes and writes them to a
+   * temporary file as a run of <code>(hash, count)</code> pairs in hash
+   * order.
+   */
+  private static Place writeRun(final long[] hashes,
+                                final int length) throws IOException {
+    Arrays.sort(hashes, 0, length);
+    final Place run = Place.fromTempFile();
+    run.deleteOnExit();
+    final DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(run.openOutputStream()));
+    try {
+      for (int i = 0; i < length; ) {
+        int j = i + 1;
+        while (j < length && hashes[j] == hashes[i]) {
+          j++;
+        }
+        out.writeLong(hashes[i]);
+        out.writeInt(j - i);
+        i = j;
+      }
+    }
+    finally {
+      out.close();
+    }
+    log.fine("Wrote a run of {0} shingles: {1}", length, run);
+    return run;
+  }
+
+  /**
+   * Iterates over the distinct shingle hashes, in order, with the number of
+   * patients of each: either of a sorted array or merged from the runs
+   * written by {@link #writeRun}.
+   */
+  private static class Merger implements Closeable {
+    private final long[] values;
+    private final int length;
+    private int position = 0;
+    private final List<DataInputStream> inputs = new ArrayList<>();
+    private final long[] heads;
+    private final int[] headCounts;
+    private final PriorityQueue<Integer> queue;
+    long hash;
+    int count;
+
+    /**
+     * Creates a <code>Merger</code> of the first <var>length</var>
+     * <var>values</var>, sorting them.
+     */
+    Merger(final long[] values, final int length) {
+      Arrays.sort(values, 0, length);
+      this.values = values;
+      this.length = length;
+      heads = null;
+      headCounts = null;
+      queue = null;
+    }
+
+    /**
+     * Creates a <code>Merger</code> of the given <var>runs</var>.
+     */
+    Merger(final List<Place> runs) throws IOException {
+      values = null;
+      length = 0;
+      heads = new long[runs.size()];
+      headCounts = new int[runs.size()];
+      queue = new PriorityQueue<>(Math.max(1, runs.size()),
+          new Comparator<Integer>() {
+        @Override
+        public int compare(final Integer r1, final Integer r2) {
+          return Long.compare(heads[r1], heads[r2]);
+        }
+      });
+      try {
+        for (final Place run : runs) {
+          inputs.add(new DataInputStream(
+              new BufferedInputStream(run.openInputStream())));
+          advance(inputs.size() - 1);
+        }
+      }
+      catch (IOException ioe) {
+        close();
+        throw ioe;
+      }
+    }
+
+    /**
+     * Reads the next pair of run <var>r</var> into the queue, unless the run
+     * is exhausted.
+     */
+    private void advance(final int r) throws IOException {
+      try {
+        heads[r] = inputs.get(r).readLong();
+        headCounts[r] = inputs.get(r).readInt();
+      }
+      catch (EOFException eofe) {
+        return;
+      }
+      queue.add(r);
+    }
+
+    /**
+     * Moves to the next distinct hash.  Returns <code>false</code> if there
+     * is none.
+     */
+    boolean next() throws IOException {
+      if (values != null) {
+        if (position >= length) {
+          return false;
+        }
+        int end = position + 1;
+        while (end < length && values[end] == values[position]) {
+          end++;
+        }
+        hash = values[position];
+        count = end - position;
+        position = end;
+        return true;
+      }
+      if (queue.isEmpty()) {
+        return false;
+      }
+      hash = heads[queue.peek()];
+      count = 0;
+      while (queue.isEmpty() == false && heads[queue.peek()] == hash) {
+        final int r = queue.poll();
+        count += headCounts[r];
+        advance(r);
+      }
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (final DataInputStream input : inputs) {
+        input.close();
+      }
+    }
+  }
+
+}
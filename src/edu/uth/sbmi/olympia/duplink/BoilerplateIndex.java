@@ -0,0 +1,215 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.util.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Shingles (runs of a fixed number of consecutive tokens) that occur in the
+ * notes of many patients of a cohort: note templates, headers, disclaimers,
+ * and standard exam text.  Such text is shared between patients, while
+ * copy-forward duplicates are within a patient, so it can be masked before
+ * {@link DupLink} aligns a patient's documents.
+ * <p>
+ * Each shingle is stored as a 64-bit hash of its words, so the index does not
+ * depend on the token IDs of any {@link Corpus}.  The hashes are kept in a
+ * sorted array, which is also the file format (after a short header), and
+ * looked up by binary search.  A hash collision can only mask a run of
+ * tokens that is not boilerplate, never unmask one that is.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class BoilerplateIndex {
+  private static final Log log = new Log(BoilerplateIndex.class);
+  private static final int MAGIC = 0x444C4250;
+  private static final int VERSION = 1;
+  private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+  private static final long FNV_PRIME = 0x100000001B3L;
+  private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+  private final int shingleLength;
+  private final int numPatients;
+  private final long[] hashes;
+
+  /**
+   * Creates a new <code>BoilerplateIndex</code> of the given sorted, distinct
+   * shingle <var>hashes</var> of <var>shingleLength</var> tokens, found in a
+   * cohort of <var>numPatients</var> patients.
+   */
+  public BoilerplateIndex(final int shingleLength, final int numPatients,
+                          final long[] hashes) {
+    assert shingleLength > 0;
+    this.shingleLength = shingleLength;
+    this.numPatients = numPatients;
+    this.hashes = hashes;
+  }
+
+  /**
+   * Returns the number of tokens per shingle.
+   */
+  public int getShingleLength() {
+    return shingleLength;
+  }
+
+  /**
+   * Returns the number of patients of the cohort the index was built from.
+   */
+  public int getNumPatients() {
+    return numPatients;
+  }
+
+  /**
+   * Returns the number of boilerplate shingles.
+   */
+  public int size() {
+    return hashes.length;
+  }
+
+  /**
+   * Returns whether the given shingle hash is boilerplate.
+   */
+  public boolean contains(final long shingle) {
+    return Arrays.binarySearch(hashes, shingle) >= 0;
+  }
+
+  /**
+   * Returns a hash of the shingle length and all the shingles, identifying
+   * the index.
+   */
+  public long getFingerprint() {
+    long fingerprint = FNV_OFFSET ^ shingleLength;
+    for (final long hash : hashes) {
+      fingerprint = (fingerprint ^ hash) * FNV_PRIME;
+    }
+    return fingerprint;
+  }
+
+  /**
+   * Returns the 64-bit FNV-1a hash of a <var>word</var>.
+   */
+  public static long hashWord(final String word) {
+    long hash = FNV_OFFSET;
+    for (int i = 0; i < word.length(); i++) {
+      hash = (hash ^ word.charAt(i)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /**
+   * Returns the hashes of the shingles of <var>shingleLength</var> tokens
+   * starting at each token of a sequence of <var>numTokens</var> word hashes
+   * (see {@link #hashWord}), or none if the sequence is shorter than a
+   * shingle.
+   */
+  public static long[] getShingles(final long[] wordHashes, final int numTokens,
+                                   final int shingleLength) {
+    final long[] shingles = new long[Math.max(0, numTokens - shingleLength + 1)];
+    for (int i = 0; i < shingles.length; i++) {
+      long hash = 0;
+      for (int j = 0; j < shingleLength; j++) {
+        hash = hash * MULTIPLIER + wordHashes[i + j];
+      }
+      shingles[i] = hash;
+    }
+    return shingles;
+  }
+
+  /**
+   * Returns, for each document of the {@link Corpus}, the maximal runs of
+   * tokens covered by a boilerplate shingle, in order, as
+   * <code>{start, end}</code> pairs.
+   */
+  public List<List<int[]>> findRuns(final Corpus corpus) {
+    final long[] vocabularyHashes = new long[corpus.getVocabularySize()];
+    for (int i = 0; i < vocabularyHashes.length; i++) {
+      vocabularyHashes[i] = hashWord(corpus.getWord(i));
+    }
+    final TokenArena arena = corpus.getArena();
+    final List<List<int[]>> runs = new ArrayList<>();
+    long[] wordHashes = new long[0];
+    for (int d = 0; d < arena.size(); d++) {
+      final int length = arena.getTokenLength(d);
+      if (wordHashes.length < length) {
+        wordHashes = new long[length];
+      }
+      for (int i = 0; i < length; i++) {
+        wordHashes[i] = vocabularyHashes[arena.getTokenID(d, i)];
+      }
+      final long[] shingles = getShingles(wordHashes, length, shingleLength);
+      final List<int[]> documentRuns = new ArrayList<>();
+      int start = -1;
+      int end = -1;
+      for (int i = 0; i < shingles.length; i++) {
+        if (contains(shingles[i]) == false) {
+          continue;
+        }
+        if (i > end) {
+          if (start >= 0) {
+            documentRuns.add(new int[] {start, end});
+          }
+          start = i;
+        }
+        end = i + shingleLength;
+      }
+      if (start >= 0) {
+        documentRuns.add(new int[] {start, end});
+      }
+      runs.add(documentRuns);
+    }
+    return runs;
+  }
+
+  /**
+   * Writes the index to the given <var>file</var>.
+   */
+  public void write(final Place file) throws IOException {
+    final DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(file.openOutputStream()));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(shingleLength);
+      out.writeInt(numPatients);
+      out.writeInt(hashes.length);
+      for (final long hash : hashes) {
+        out.writeLong(hash);
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads an index written by {@link #write}.
+   */
+  public static BoilerplateIndex read(final Place file) throws IOException {
+    final DataInputStream in = new DataInputStream(
+        new BufferedInputStream(file.openInputStream()));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a boilerplate index: " + file);
+      }
+      final int shingleLength = in.readInt();
+      final int numPatients = in.readInt();
+      final long[] hashes = new long[in.readInt()];
+      for (int i = 0; i < hashes.length; i++) {
+        hashes[i] = in.readLong();
+        if (i > 0 && hashes[i] <= hashes[i-1]) {
+          throw new IOException("Unsorted boilerplate index: " + file);
+        }
+      }
+      log.fine("Boilerplate index: {0} shingles of {1} tokens from {2} " +
+          "patients", hashes.length, shingleLength, numPatients);
+      return new BoilerplateIndex(shingleLength, numPatients, hashes);
+    }
+    catch (EOFException eofe) {
+      throw new IOException("Truncated boilerplate index: " + file);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+}
@@ -0,0 +1,219 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.util.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Periodic checkpoint of a {@link DupLink#findLinks} run: the number of
+ * completed target documents and their {@link LinkRecord}s, in a compact
+ * binary file.  A run resumed from a checkpoint continues with the next
+ * target and produces the same links as an uninterrupted run.
+ * <p>
+ * The file starts with the parameters and the ID, token length, and a hash
+ * of the token IDs of every document, so a checkpoint is only resumed on the
+ * same input, even if a document was edited without changing its length.  It is
+ * written to a temporary file first and then renamed, so a crash while
+ * writing leaves the previous checkpoint intact.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class Checkpoint {
+  private static final Log log = new Log(Checkpoint.class);
+  private static final int MAGIC = 0x444C4350;
+  private static final int VERSION = 8;
+  private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+  private final Place file;
+  private final long interval;
+  private final long deadline;
+  private long lastWrite = System.currentTimeMillis();
+  private int nextTarget = 1;
+  private final List<LinkRecord> records = new ArrayList<>();
+  private final long[] counters = new long[5];
+
+  /**
+   * Creates a new <code>Checkpoint</code> written to <var>file</var> every
+   * <var>interval</var> milliseconds.  The run stops (after writing the
+   * checkpoint) once <var>timeLimit</var> milliseconds have passed, or never
+   * if it is <code>null</code>.
+   */
+  public Checkpoint(final Place file, final long interval,
+                    final Long timeLimit) {
+    this.file = file;
+    this.interval = interval;
+    this.deadline = timeLimit == null ? Long.MAX_VALUE :
+        System.currentTimeMillis() + timeLimit;
+  }
+
+  /**
+   * Returns the index of the first target document that is not completed.
+   */
+  public int getNextTarget() {
+    return nextTarget;
+  }
+
+  /**
+   * Returns the {@link LinkRecord}s of the completed target documents.
+   */
+  public List<LinkRecord> getRecords() {
+    return Collections.unmodifiableList(records);
+  }
+
+  /**
+   * Returns the pair and cell counters of {@link DupLink} for the completed
+   * target documents.
+   */
+  long[] getCounters() {
+    return counters;
+  }
+
+  /**
+   * Returns whether a checkpoint should be written now.
+   */
+  public boolean isDue() {
+    return System.currentTimeMillis() - lastWrite >= interval || isExpired();
+  }
+
+  /**
+   * Returns whether the time limit has passed.
+   */
+  public boolean isExpired() {
+    return System.currentTimeMillis() >= deadline;
+  }
+
+  /**
+   * Returns whether every target document of the {@link Corpus} is
+   * completed.
+   */
+  public boolean isComplete(final Corpus corpus) {
+    return nextTarget >= corpus.size();
+  }
+
+  /**
+   * Writes the header identifying the parameters and input documents.
+   */
+  private static void writeHeader(final DataOutputStream out,
+                                  final DupLink dupLink,
+                                  final Corpus corpus) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeDouble(dupLink.getGap());
+    out.writeDouble(dupLink.getPenalty());
+    out.writeDouble(dupLink.getMinScore());
+    out.writeInt(dupLink.getAnchorLength());
+    out.writeInt(dupLink.getAnchorSources());
+    out.writeLong(dupLink.getBoilerplate() == null ? 0 :
+                  dupLink.getBoilerplate().getFingerprint());
+    out.writeUTF(dupLink.isSentenceLevel() ? dupLink.getSentenceSplitter() :
+                 "");
+    out.writeInt(corpus.size());
+    for (int i = 0; i < corpus.size(); i++) {
+      out.writeUTF(corpus.getDocumentID(i));
+      out.writeInt(corpus.getArena().getTokenLength(i));
+      out.writeLong(hashTokens(corpus.getArena(), i));
+    }
+  }
+
+  /**
+   * Returns a hash of the token IDs of the <var>document</var> of the
+   * <var>arena</var>.  The IDs are assigned in order of first occurrence, so
+   * the same documents always get the same IDs.
+   */
+  private static long hashTokens(final TokenArena arena, final int document) {
+    long hash = 0;
+    for (int i = 0; i < arena.getTokenLength(document); i++) {
+      hash = hash * HASH_MULTIPLIER + arena.getTokenID(document, i) + 1;
+    }
+    return hash;
+  }
+
+  /**
+   * Writes the checkpoint with the <var>records</var> of all target documents
+   * before <var>nextTarget</var>.
+   */
+  public void write(final DupLink dupLink, final Corpus corpus,
+                    final int nextTarget, final List<LinkRecord> records,
+                    final long[] counters) throws IOException {
+    final Place temp = file.getSibling(file.getName() + ".tmp");
+    final DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(temp.openOutputStream()));
+    try {
+      writeHeader(out, dupLink, corpus);
+      out.writeInt(nextTarget);
+      for (final long counter : counters) {
+        out.writeLong(counter);
+      }
+      out.writeInt(records.size());
+      for (final LinkRecord record : records) {
+        out.writeInt(record.getDestDocument());
+        out.writeInt(record.getDestStart());
+        out.writeInt(record.getDestEnd());
+        out.writeInt(record.getSourceDocument());
+        out.writeInt(record.getSourceStart());
+        out.writeInt(record.getSourceEnd());
+        out.writeInt(record.getNumDiffs());
+        for (int i = 0; i < record.getNumDiffs(); i++) {
+          for (final int offset : record.getDiff(i)) {
+            out.writeInt(offset);
+          }
+        }
+      }
+    }
+    finally {
+      out.close();
+    }
+    if (temp.renameTo(file) == false) {
+      throw new IOException("Could not rename " + temp + " to " + file);
+    }
+    this.nextTarget = nextTarget;
+    lastWrite = System.currentTimeMillis();
+    log.fine("Checkpoint: {0} of {1} documents, {2} links",
+        nextTarget, corpus.size(), records.size());
+  }
+
+  /**
+   * Loads the checkpoint file, which must have been written for the same
+   * parameters and documents.
+   */
+  public void read(final DupLink dupLink,
+                   final Corpus corpus) throws IOException {
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    writeHeader(new DataOutputStream(expected), dupLink, corpus);
+    final DataInputStream in = new DataInputStream(
+        new BufferedInputStream(file.openInputStream()));
+    try {
+      final byte[] header = new byte[expected.size()];
+      in.readFully(header);
+      if (Arrays.equals(header, expected.toByteArray()) == false) {
+        throw new IOException("Checkpoint does not match the parameters " +
+                              "and documents: " + file);
+      }
+      nextTarget = in.readInt();
+      for (int i = 0; i < counters.length; i++) {
+        counters[i] = in.readLong();
+      }
+      records.clear();
+      final int numRecords = in.readInt();
+      for (int r = 0; r < numRecords; r++) {
+        final LinkRecord record = new LinkRecord(in.readInt(), in.readInt(),
+            in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        final int numDiffs = in.readInt();
+        for (int i = 0; i < numDiffs; i++) {
+          record.addDiff(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        }
+        records.add(record);
+      }
+    }
+    catch (EOFException eofe) {
+      throw new IOException("Truncated checkpoint: " + file);
+    }
+    finally {
+      in.close();
+    }
+    log.info("Resuming from checkpoint: {0} of {1} documents, {2} links",
+        nextTarget, corpus.size(), records.size());
+  }
+
+}
@@ -0,0 +1,177 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.text.*;
+import edu.uth.sbmi.olympia.util.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Tokenized, chronologically-ordered {@link Document}s whose token IDs and
+ * offsets are computed once, stored in a {@link TokenArena}, and shared
+ * between {@link DupLink} runs.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class Corpus {
+  private static final Log log = new Log(Corpus.class);
+
+  private final List<String> documentIDs = new ArrayList<>();
+  private final List<Place> files = new ArrayList<>();
+  private final List<String> texts;
+  private final TokenArena arena;
+  private final Map<String,Integer> vocabulary = new HashMap<>();
+  private final List<String> words = new ArrayList<>();
+  private final List<int[]> sentenceStarts = new ArrayList<>();
+
+  /**
+   * Creates a new, empty <code>Corpus</code>.
+   */
+  public Corpus() {
+    this(true);
+  }
+
+  /**
+   * Creates a new, empty <code>Corpus</code>.  Unless <var>keepTexts</var>,
+   * only the token IDs and offsets of the added documents are kept, and their
+   * text is read from their file again when a {@link Document} is rebuilt.
+   */
+  public Corpus(final boolean keepTexts) {
+    texts = keepTexts ? new ArrayList<String>() : null;
+    arena = new TokenArena();
+  }
+
+  /**
+   * Creates a new <code>Corpus</code> from the given tokenized
+   * {@link Document}s.
+   */
+  public Corpus(final List<Document> documents) {
+    int numTokens = 0;
+    for (final Document document : documents) {
+      numTokens += document.getTokenLength();
+    }
+    texts = new ArrayList<>();
+    arena = new TokenArena(numTokens);
+    for (final Document document : documents) {
+      add(document);
+    }
+  }
+
+  /**
+   * Adds the next tokenized {@link Document}.  Returns its index.
+   */
+  public int add(final Document document) {
+    final int index = arena.addDocument();
+    for (final Token token : document.getTokens()) {
+      final String word = token.asRawString();
+      Integer id = vocabulary.get(word);
+      if (id == null) {
+        id = words.size();
+        vocabulary.put(word, id);
+        words.add(word);
+      }
+      arena.addToken(id, token.getStartCharOffset(), token.getEndCharOffset());
+    }
+    documentIDs.add(document.getDocumentID());
+    files.add(document.getFile());
+    sentenceStarts.add(document.hasAnnotatedType(Sentence.TYPE) ?
+        getSentenceStarts(document) : null);
+    if (texts != null) {
+      texts.add(document.asRawString());
+    }
+    return index;
+  }
+
+  /**
+   * Returns the first token of every {@link Sentence} of the
+   * <var>document</var>, in order, starting with token 0.  Tokens outside
+   * any sentence belong to the one before them.
+   */
+  private static int[] getSentenceStarts(final Document document) {
+    final List<Sentence> sentences = document.getSubSorted(Sentence.class);
+    final int[] starts = new int[sentences.size() + 1];
+    int numStarts = 0;
+    starts[numStarts++] = 0;
+    for (final Sentence sentence : sentences) {
+      final int start = sentence.getStartTokenOffset();
+      if (start > starts[numStarts - 1]) {
+        starts[numStarts++] = start;
+      }
+    }
+    return Arrays.copyOf(starts, numStarts);
+  }
+
+  /**
+   * Returns the number of documents in the <code>Corpus</code>.
+   */
+  public int size() {
+    return arena.size();
+  }
+
+  /**
+   * Returns the {@link TokenArena} holding the token IDs and offsets.
+   */
+  public TokenArena getArena() {
+    return arena;
+  }
+
+  /**
+   * Returns the ID of the <var>index</var>th document.
+   */
+  public String getDocumentID(final int index) {
+    return documentIDs.get(index);
+  }
+
+  /**
+   * Returns the first token of every sentence of the <var>index</var>th
+   * document, starting with token 0, or <code>null</code> if its
+   * {@link Sentence}s were not annotated when it was added.
+   */
+  public int[] getSentenceStarts(final int index) {
+    return sentenceStarts.get(index);
+  }
+
+  /**
+   * Returns the number of distinct token IDs.
+   */
+  public int getVocabularySize() {
+    return words.size();
+  }
+
+  /**
+   * Returns the token with the given ID.
+   */
+  public String getWord(final int tokenID) {
+    return words.get(tokenID);
+  }
+
+  /**
+   * Creates a fresh, unlinked copy of the <var>index</var>th {@link Document}
+   * from the stored token offsets, so the tokenizer is not run again.
+   */
+  public Document newDocument(final int index) throws IOException {
+    final String text = texts != null ? texts.get(index) :
+        files.get(index).readString();
+    final Document document = new Document(text);
+    document.setDocumentID(documentIDs.get(index));
+    document.setFile(files.get(index));
+    for (int i = 0; i < arena.getTokenLength(index); i++) {
+      document.addToken(new Token(document,
+          arena.getStartCharOffset(index, i), arena.getEndCharOffset(index, i)));
+    }
+    document.addAnnotatedType(Token.TYPE);
+    return document;
+  }
+
+  /**
+   * Creates fresh, unlinked copies of all the {@link Document}s.
+   */
+  public List<Document> newDocuments() throws IOException {
+    final List<Document> documents = new ArrayList<>();
+    for (int i = 0; i < size(); i++) {
+      documents.add(newDocument(i));
+    }
+    return documents;
+  }
+
+}
@@ -0,0 +1,90 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.text.*;
+import edu.uth.sbmi.olympia.util.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Least-recently-used cache of the full {@link Document}s of a
+ * {@link Corpus}, bounded by an estimate of their heap size.  Evicted
+ * documents remain in compact form in the {@link TokenArena} and are rebuilt
+ * from disk by {@link Corpus#newDocument} when needed again.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class DocumentCache {
+  private static final Log log = new Log(DocumentCache.class);
+  /** Estimated heap bytes per {@link Token}, including its annotation indexes. */
+  public static long BYTES_PER_TOKEN = 256;
+  /** Estimated heap bytes per character of text. */
+  public static long BYTES_PER_CHAR = 2;
+
+  private final Corpus corpus;
+  private final long budget;
+  private final LinkedHashMap<Integer,Document> documents =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private long size = 0;
+  private int numRebuilt = 0;
+
+  /**
+   * Creates a new, empty <code>DocumentCache</code> for the given
+   * {@link Corpus} holding at most (an estimated) <var>budget</var> bytes.
+   */
+  public DocumentCache(final Corpus corpus, final long budget) {
+    this.corpus = corpus;
+    this.budget = budget;
+  }
+
+  /**
+   * Returns the estimated heap size of a {@link Document}.
+   */
+  private static long estimateSize(final Document document) {
+    return BYTES_PER_TOKEN * document.getTokenLength() +
+           BYTES_PER_CHAR * document.getCharLength();
+  }
+
+  /**
+   * Adds the <var>index</var>th {@link Document} of the {@link Corpus} to the
+   * cache, evicting the least recently used documents beyond the budget.
+   */
+  public void put(final int index, final Document document) {
+    final Document prev = documents.put(index, document);
+    if (prev != null) {
+      size -= estimateSize(prev);
+    }
+    size += estimateSize(document);
+    final Iterator<Map.Entry<Integer,Document>> iter =
+        documents.entrySet().iterator();
+    while (size > budget && iter.hasNext()) {
+      final Map.Entry<Integer,Document> e = iter.next();
+      log.finer("Evicting document: {0}", e.getValue().getDocumentID());
+      size -= estimateSize(e.getValue());
+      iter.remove();
+    }
+  }
+
+  /**
+   * Returns the <var>index</var>th {@link Document} of the {@link Corpus},
+   * rebuilding it if it is not in the cache.
+   */
+  public Document get(final int index) throws IOException {
+    Document document = documents.get(index);
+    if (document == null) {
+      log.finer("Rebuilding document: {0}", corpus.getDocumentID(index));
+      document = corpus.newDocument(index);
+      numRebuilt++;
+      put(index, document);
+    }
+    return document;
+  }
+
+  /**
+   * Returns the number of {@link Document}s rebuilt from disk.
+   */
+  public int getNumRebuilt() {
+    return numRebuilt;
+  }
+
+}
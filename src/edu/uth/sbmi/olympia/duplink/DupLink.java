@@ -17,21 +17,28 @@ public class DupLink {
   public static double DEFAULT_GAP = -5.0;
   public static double DEFAULT_PENALTY = -10.0;
   public static double DEFAULT_MIN_SCORE = 50.0;
+  /** Most tokens bridged between, or extended beyond, exact repeats. */
+  public static int ANCHOR_GAP = 50;
+  public static int DEFAULT_ANCHOR_SOURCES = 8;
+  /** Sentences aligned around each block of matching sentences. */
+  public static int SENTENCE_MARGIN = 1;
+  private static final long SENTENCE_HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
 
   private final double gap;
   private final double minScore;
   private final double penalty;
-  private final SimilarityMatrix sim = new SimilarityMatrix() {
-    @Override
-    public double similarity(final String item1, final String item2) {
-      if (item1.equals(item2)) {
-        return 1.0;
-      }
-      else {
-        return penalty;
-      }
-    }
-  };
+  private int anchorLength = 0;
+  private int anchorSources = DEFAULT_ANCHOR_SOURCES;
+  private BoilerplateIndex boilerplate = null;
+  private List<List<int[]>> sharedRuns = null;
+  private List<ExactRepeat> sharedRepeats = null;
+  private String sentenceSplitter = null;
+  private int numPairs = 0;
+  private int numBoundPruned = 0;
+  private int numOverlapPruned = 0;
+  private int numSkipped = 0;
+  private long numCells = 0;
+  private long numMaskedCells = 0;
 
   /**
    * Creates a new <code>DupLink</code> with the default parameters.
@@ -51,250 +58,675 @@ public class DupLink {
   }
 
   /**
-   * Creates a <code>String</code> array to use for Smith-Waterman.
+   * Returns a new <code>DupLink</code> with the given <var>gap</var>,
+   * <var>penalty</var>, and <var>minScore</var> parameters and the options of
+   * this one, sharing its repeats and boilerplate runs (if set).
+   */
+  public DupLink withScores(final double gap, final double penalty,
+                            final double minScore) {
+    final DupLink dupLink = new DupLink(gap, penalty, minScore);
+    dupLink.anchorLength = anchorLength;
+    dupLink.anchorSources = anchorSources;
+    dupLink.boilerplate = boilerplate;
+    dupLink.sharedRuns = sharedRuns;
+    dupLink.sharedRepeats = sharedRepeats;
+    dupLink.sentenceSplitter = sentenceSplitter;
+    return dupLink;
+  }
+
+  /**
+   * Annotates duplicate {@link Link}s on the given chronologically-ordered
+   * {@link Document}s.
+   */
+  public void findDuplicates(final List<Document> documents) {
+    findDuplicates(documents, new Corpus(documents));
+  }
+
+  /**
+   * Annotates duplicate {@link Link}s on the given chronologically-ordered
+   * {@link Document}s, re-using the token IDs of the {@link Corpus} they were
+   * created from.
    */
-  private String[] getSequence(final Text text) {
-    final List<Token> tokens = text.getTokens();
-    final String[] sequence = new String[tokens.size()];
-    for (int i = 0; i < sequence.length; i++) {
-      sequence[i] = tokens.get(i).asRawString();
+  public void findDuplicates(final List<Document> documents,
+                             final Corpus corpus) {
+    assert documents.size() == corpus.size();
+    for (final LinkRecord record : findLinks(corpus)) {
+      record.toLink(documents).attach();
     }
-    return sequence;
   }
 
   /**
-   * Returns a <code>Set</code> of all the items in the <var>sequence</var>.
+   * Returns the gap penalty.
+   */
+  public double getGap() {
+    return gap;
+  }
+
+  /**
+   * Returns the similarity penalty.
+   */
+  public double getPenalty() {
+    return penalty;
+  }
+
+  /**
+   * Returns the minimum score of a duplicate.
+   */
+  public double getMinScore() {
+    return minScore;
+  }
+
+  /**
+   * Returns the minimum length of the exact repeats that anchor alignments,
+   * or 0 if every source is aligned in full.
+   */
+  public int getAnchorLength() {
+    return anchorLength;
+  }
+
+  /**
+   * Builds alignments on the exact repeats of at least
+   * <var>anchorLength</var> tokens between documents (found with a
+   * {@link SuffixArray}) using an {@link AnchoredAligner}, instead of aligning
+   * every source in full, or not if 0.  Duplicates without such a repeat are
+   * not found.
+   */
+  public void setAnchorLength(final int anchorLength) {
+    assert anchorLength >= 0;
+    this.anchorLength = anchorLength;
+  }
+
+  /**
+   * Returns the number of latest earlier documents whose exact repeats with
+   * a document are found, besides the earliest one, or 0 for all of them.
+   */
+  public int getAnchorSources() {
+    return anchorSources;
+  }
+
+  /**
+   * Finds the exact repeats of a document only with the earliest and the
+   * <var>anchorSources</var> latest earlier documents containing the same
+   * text, or with all of them if 0 (see {@link SuffixArray#findRepeats}).
+   * Text copied into many documents otherwise makes a quadratic number of
+   * repeats, but a duplicate whose only repeats are with the skipped
+   * documents is not found.
+   */
+  public void setAnchorSources(final int anchorSources) {
+    assert anchorSources >= 0;
+    this.anchorSources = anchorSources;
+  }
+
+  /**
+   * Anchors the alignments on the given exact <var>repeats</var>, which must
+   * have been returned by {@link #findRepeats} for the same {@link Corpus},
+   * anchor length, and anchor sources, instead of finding them again in
+   * {@link #findLinks}.  This lets several runs with other scores share them.
    */
-  private Set<String> wordSet(final String[] sequence) {
-    final Set<String> wordSet = new HashSet<>();
-    for (int i = 0; i < sequence.length; i++) {
-      wordSet.add(sequence[i]);
+  public void setRepeats(final List<ExactRepeat> repeats) {
+    this.sharedRepeats = repeats;
+  }
+
+  /**
+   * Returns the exact repeats of at least <var>anchorLength</var> tokens
+   * between the documents of the {@link Corpus}, found with a
+   * {@link SuffixArray} for the given <var>anchorSources</var> (see
+   * {@link #setAnchorSources}).
+   */
+  public static List<ExactRepeat> findRepeats(final Corpus corpus,
+                                              final int anchorLength,
+                                              final int anchorSources) {
+    final List<ExactRepeat> repeats = new SuffixArray(corpus.getArena(),
+        corpus.getVocabularySize()).findRepeats(anchorLength, anchorSources);
+    log.info("Anchoring alignments on {0} exact repeats of at least {1} " +
+        "tokens", repeats.size(), anchorLength);
+    return repeats;
+  }
+
+  /**
+   * Returns whether sentences are aligned before tokens.
+   */
+  public boolean isSentenceLevel() {
+    return sentenceSplitter != null;
+  }
+
+  /**
+   * Returns the name of the sentence annotator the documents were split
+   * with, or <code>null</code> if sentences are not aligned.
+   */
+  public String getSentenceSplitter() {
+    return sentenceSplitter;
+  }
+
+  /**
+   * Aligns the sentences of the documents before their tokens using a
+   * {@link SentenceAligner}, so only the tokens in and around blocks of
+   * equal sentences are aligned.  The documents of the {@link Corpus} must
+   * have been added with their {@link edu.uth.sbmi.olympia.text.Sentence}s
+   * annotated by the given <var>sentenceSplitter</var> (a class name, which
+   * identifies the run in a {@link Checkpoint}), or <code>null</code> to
+   * align tokens only.  Duplicates without a whole sentence in common are
+   * not found.
+   */
+  public void setSentenceSplitter(final String sentenceSplitter) {
+    this.sentenceSplitter = sentenceSplitter;
+  }
+
+  /**
+   * Returns the index of the boilerplate that is masked before alignment, or
+   * <code>null</code> if none.
+   */
+  public BoilerplateIndex getBoilerplate() {
+    return boilerplate;
+  }
+
+  /**
+   * Masks the runs of tokens covered by shingles of the given
+   * {@link BoilerplateIndex} (if not <code>null</code>) before alignment.
+   * Masked tokens are neither linked nor aligned, so no duplicate contains
+   * boilerplate.
+   */
+  public void setBoilerplate(final BoilerplateIndex boilerplate) {
+    this.boilerplate = boilerplate;
+  }
+
+  /**
+   * Masks the given boilerplate <var>runs</var>, which must have been
+   * returned by {@link BoilerplateIndex#findRuns} of the boilerplate index for
+   * the same {@link Corpus}, instead of finding them again in
+   * {@link #findLinks}.
+   */
+  public void setBoilerplateRuns(final List<List<int[]>> runs) {
+    this.sharedRuns = runs;
+  }
+
+  /**
+   * Returns the duplicate links between the documents of the given
+   * {@link Corpus}.  Only the {@link TokenArena} is used, no {@link Document}
+   * or {@link Link} is created.
+   */
+  public List<LinkRecord> findLinks(final Corpus corpus) {
+    try {
+      return findLinks(corpus, null);
+    }
+    catch (IOException ioe) {
+      // Only checkpoints do I/O
+      throw new IllegalStateException(ioe);
     }
-    return wordSet;
-  }
-
-  ///**
-  // * Returns the segments of the {@link Document} that are eligible for
-  // * consideration as duplicates.
-  // */
-  //private List<Text> getEligibleSegments(final Document document) {
-  //  final List<Text> segments = new ArrayList<>();
-
-  //  final List<Link> existingLinks = new ArrayList<>(
-  //      document.getSub(Link.class));
-  //  
-  //  if (existingLinks.isEmpty()) {
-  //    segments.add(document);
-  //    return segments;
-  //  }
-
-  //  segments.addAll(document.getNonIntersecting(Link.class));
-
-  //  // Begin DBG
-  //  final List<Text> DBG = new ArrayList<>(segments);
-  //  DBG.addAll(document.getSub(Link.class));
-  //  Collections.sort(DBG, TextComparators.startToken());
-  //  for (final Text span : DBG) {
-  //    if (span instanceof Link) {
-  //      log.DBG("Paste Segment:");
-  //    }
-  //    else {
-  //      log.DBG("Original Segment:");
-  //    }
-  //    log.DBG("  {0}", Strings.join(
-  //        Strings.wrapLines(span.asRawString(), 120, true), "\n  ").trim());
-  //  }
-  //  System.exit(1);
-  //  // End DBG
-
-  //  return segments;
-  //}
+  }
 
   /**
-   * Annotates duplicate {@link Link}s on the given chronologically-ordered
-   * {@link Document}s.
+   * Returns the duplicate links between the documents of the given
+   * {@link Corpus}, continuing from and periodically writing the given
+   * {@link Checkpoint} (if not <code>null</code>).  If the time limit of the
+   * checkpoint passes, the links of the completed target documents are
+   * returned and {@link Checkpoint#isComplete} is <code>false</code>.
    */
-  public void findDuplicates(final List<Document> documents) {
-    final SmithWaterman aligner = new SmithWaterman();
-    for (int x = 0; x < documents.size(); x++) {
-      final Document doc1 = documents.get(x);
-      final String[] seq1 = getSequence(doc1);
-      final Set<String> wordSet1 = wordSet(seq1);
-      for (int y = x + 1; y < documents.size(); y++) {
-        final Document doc2 = documents.get(y);
-        //for (final Text segment : getEligibleSegments(doc2)) {
-        for (final Text segment : doc2.getNonIntersecting(Link.class)) {
-          final int shift = segment.getStartTokenOffset();
-          final String[] seq2 = getSequence(segment);
-
-          // Speed-up: check the set overlap first
-          final Set<String> wordSet2 = wordSet(seq2);
-          final int overlap = Util.intersection(wordSet1, wordSet2).size();
-          if (overlap < minScore) {
-            continue;
+  public List<LinkRecord> findLinks(final Corpus corpus,
+                                    final Checkpoint checkpoint)
+      throws IOException {
+    final TokenArena arena = corpus.getArena();
+    final TokenAligner aligner = new TokenAligner(gap, penalty);
+    final ScoreBound scoreBound = new ScoreBound(corpus.getVocabularySize(),
+        gap, penalty);
+    final LinkedRegions linked = new LinkedRegions(arena.size());
+    final List<LinkRecord> records = new ArrayList<>();
+    numPairs = 0;
+    numBoundPruned = 0;
+    numOverlapPruned = 0;
+    numSkipped = 0;
+    numCells = 0;
+    numMaskedCells = 0;
+    // Boilerplate is marked as linked in the targets and splits the sources
+    // into runs that are aligned separately
+    final LinkedRegions masked = new LinkedRegions(arena.size());
+    final int[] numMasked = new int[arena.size()];
+    if (boilerplate != null) {
+      final List<List<int[]>> runs = sharedRuns != null ? sharedRuns :
+          boilerplate.findRuns(corpus);
+      long total = 0;
+      for (int d = 0; d < arena.size(); d++) {
+        for (final int[] run : runs.get(d)) {
+          linked.add(d, run[0], run[1]);
+          masked.add(d, run[0], run[1]);
+          numMasked[d] += run[1] - run[0];
+        }
+        total += numMasked[d];
+      }
+      log.info("Masked {0} of {1} tokens as boilerplate", total,
+          arena.getNumTokens());
+    }
+    int first = 1;
+    if (checkpoint != null) {
+      for (final LinkRecord record : checkpoint.getRecords()) {
+        linked.add(record.getDestDocument(),
+            record.getDestStart(), record.getDestEnd());
+        records.add(record);
+      }
+      first = checkpoint.getNextTarget();
+      final long[] counters = checkpoint.getCounters();
+      numPairs = (int) counters[0];
+      numBoundPruned = (int) counters[1];
+      numOverlapPruned = (int) counters[2];
+      numCells = counters[3];
+      numMaskedCells = counters[4];
+    }
+    List<ExactRepeat> repeats = null;
+    int r = 0;
+    int[] seq1 = new int[0];
+    int[] seq2 = new int[0];
+    AnchoredAligner anchoredAligner = null;
+    if (anchorLength > 0) {
+      anchoredAligner = new AnchoredAligner(gap, penalty, ANCHOR_GAP);
+      repeats = sharedRepeats != null ? sharedRepeats :
+          findRepeats(corpus, anchorLength, anchorSources);
+    }
+    // Sentences with the same tokens have the same ID
+    int[][] sentenceIDs = null;
+    int numSentenceIDs = 0;
+    SentenceAligner sentenceAligner = null;
+    if (sentenceSplitter != null) {
+      sentenceAligner = new SentenceAligner(gap, penalty, SENTENCE_MARGIN);
+      sentenceIDs = new int[arena.size()][];
+      final Map<Long,Integer> ids = new HashMap<>();
+      long numSentences = 0;
+      for (int d = 0; d < arena.size(); d++) {
+        final int[] starts = corpus.getSentenceStarts(d);
+        if (starts == null) {
+          throw new IllegalStateException("No sentences annotated: " +
+              corpus.getDocumentID(d));
+        }
+        sentenceIDs[d] = new int[starts.length];
+        for (int i = 0; i < starts.length; i++) {
+          final int end = i + 1 < starts.length ? starts[i+1] :
+              arena.getTokenLength(d);
+          long hash = 0;
+          for (int t = starts[i]; t < end; t++) {
+            hash = hash * SENTENCE_HASH_MULTIPLIER + arena.getTokenID(d, t);
           }
-
-          // TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO
-          // TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO
-          // TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO
-          //
-          // Instead of running the entire doc2 sequence, only run the
-          // sub-sequences of doc2 that don't already have an existing link
-          //
-          // TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO
-          // TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO
-          // TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO TODO
-
-          log.finest("Running Local Sequence Alignment on Documents: ({0}, {1}) " +
-              "  ({2} tokens, {3} tokens)", x, y, seq1.length, seq2.length);
-          final List<LocalAlignment> localAlignments =
-              aligner.alignMulti(seq1, seq2, gap, sim, minScore);
-          for (final LocalAlignment localAlignment : localAlignments) {
-            final Alignment alignment = localAlignment.getBestAlignment();
-            log.finest("--------------------------------------------------");
-            log.finer("Alignment: {0} - {1} [{2},{3}) from [{4},{5})",
-                doc1.getDocumentID(), doc2.getDocumentID(),
-                segment.getStartTokenOffset(), segment.getEndTokenOffset(),
-                doc2.getStartTokenOffset(),    doc2.getEndTokenOffset());
-            log.finer("Alignment Score: {0}", alignment.score);
-            if (log.pico()) {
-              log.pico("{0}", alignment.pretty());
+          Integer id = ids.get(hash);
+          if (id == null) {
+            id = ids.size();
+            ids.put(hash, id);
+          }
+          sentenceIDs[d][i] = id;
+        }
+        numSentences += starts.length;
+      }
+      numSentenceIDs = ids.size();
+      log.info("Aligning {0} sentences ({1} distinct) before their tokens",
+          numSentences, numSentenceIDs);
+    }
+    // Each target is linked against its sources in chronological order, so
+    // a target only depends on the links already made to itself
+    for (int y = first; y < arena.size(); y++) {
+      for (int x = 0; x < y; x++) {
+        final int length1 = arena.getTokenLength(x);
+        final List<int[]> sourceRuns = masked.getUnlinked(x, length1);
+        final List<int[]> segments =
+            linked.getUnlinked(y, arena.getTokenLength(y));
+        if (boilerplate != null) {
+          // Alignment work of this pair without the masking
+          int unmasked1 = 0;
+          for (final int[] run : sourceRuns) {
+            unmasked1 += run[1] - run[0];
+          }
+          int unlinked2 = 0;
+          for (final int[] segment : segments) {
+            unlinked2 += segment[1] - segment[0];
+          }
+          numMaskedCells += (long) length1 * (unlinked2 + numMasked[y]) -
+              (long) unmasked1 * unlinked2;
+        }
+        if (sourceRuns.isEmpty()) {
+          continue;
+        }
+        // The repeats are ordered the same way as the documents are visited
+        List<ExactRepeat> pairRepeats = null;
+        if (repeats != null) {
+          while (r < repeats.size() && (repeats.get(r).destDocument < y ||
+              (repeats.get(r).destDocument == y &&
+               repeats.get(r).srcDocument < x))) {
+            r++;
+          }
+          int end = r;
+          while (end < repeats.size() && repeats.get(end).destDocument == y &&
+                 repeats.get(end).srcDocument == x) {
+            end++;
+          }
+          pairRepeats = repeats.subList(r, end);
+          r = end;
+        }
+        for (final int[] segment : segments) {
+          seq2 = arena.getTokenIDs(y, segment[0], segment[1], seq2);
+          final int length2 = segment[1] - segment[0];
+          final int[][] sentences2 = sentenceIDs == null ? null :
+              getSentences(corpus, sentenceIDs, y, segment,
+                           numSentenceIDs + 1);
+          // The tokens of earlier alignments stay used in seq2
+          for (final int[] run : sourceRuns) {
+            // Speed-up: skip pairs that cannot reach the minimum score
+            scoreBound.setSource(arena, x, run[0], run[1]);
+            final double bound = scoreBound.upperBound(arena, y,
+                segment[0], segment[1]);
+            numPairs++;
+            if (scoreBound.getDistinctOverlap() < minScore) {
+              numOverlapPruned++;
+            }
+            if (bound < minScore) {
+              numBoundPruned++;
+              continue;
             }
 
-            final Text src = doc1.getToken(alignment.start1).union(
-                             doc1.getToken(alignment.end1-1));
-            final Text dest = doc2.getToken(shift + alignment.start2).union(
-                              doc2.getToken(shift + alignment.end2-1));
-
-            assert dest.hasIntersecting(Link.class) == false : "segmenting error";
-
-            //// Only connect a destination to its earliest possible source, that
-            //// means if there's already an attached Link, this one should be
-            //// skipped unless there is a leading/trailing destination
-            //if (dest.hasIntersecting(Link.class)) {
-            //  log.finer("==> found transitive copy");
-            //  if (log.finest()) {
-            //    for (final Link link : dest.getIntersecting(Link.class)) {
-            //      final Text _src = link.getSource();
-            //      log.finest("Prior Source ({0})", _src.getDocumentID());
-            //      log.finest("  {0}", Strings.join(
-            //          Strings.wrapLines(_src.asRawString(), 120, true), "\n  ").trim());
-            //    }
-            //    log.finest("Current Source ({0})", src.getDocumentID());
-            //    log.finest("  {0}", Strings.join(
-            //        Strings.wrapLines(src.asRawString(), 120, true), "\n  ").trim());
-            //  }
-
-            //  if (dest.getFirstToken().hasSuper(Link.class) == false) {
-            //    final Token first = dest.getFirstToken();
-            //    Token last = first;
-            //    while (last.getNextToken().hasSuper(Link.class) == false) {
-            //      last = last.getNextToken();
-            //      assert last != dest.getLastToken();
-            //    }
-            //    final Text span = first.union(last);
-            //    log.DBG("Need to add Leading Destination:");
-            //    log.DBG("  {0}", Strings.join(
-            //        Strings.wrapLines(span.asRawString(), 120, true), "\n  ").trim());
-            //  }
-            //  if (dest.getLastToken().hasSuper(Link.class) == false) {
-            //    final Token last = dest.getLastToken();
-            //    Token first = last;
-            //    while (first.getPrevToken().hasSuper(Link.class) == false) {
-            //      first = first.getPrevToken();
-            //      assert first != dest.getFirstToken();
-            //    }
-            //    final Text span = first.union(last);
-            //    log.DBG("Need to add Trailing Destination:");
-            //    log.DBG("  {0}", Strings.join(
-            //        Strings.wrapLines(span.asRawString(), 120, true), "\n  ").trim());
-            //  }
-            //  System.exit(1);
-            //}
-
-            final Link link = new Link(dest, src);
-
-            final List<Pair<Token,Token>> tokenDiffs = new ArrayList<>();
-            int m = src.getStartTokenOffset();
-            int n = dest.getStartTokenOffset();
-            int numTokenDiffs = 0;
-            for (int i = 0; i < alignment.sequence1.length; i++) {
-              final String item1 = alignment.sequence1[i];
-              final String item2 = alignment.sequence2[i];
-              if (item1.equals(item2)) {
-                m++;
-                n++;
-              }
-              else if (item1 == Alignment.GAP) {
-                tokenDiffs.add(Pair.of((Token) null, doc2.getToken(n)));
-                n++;
-                numTokenDiffs++;
-              }
-              else if (item2 == Alignment.GAP) {
-                tokenDiffs.add(Pair.of(doc1.getToken(m), (Token) null));
-                m++;
-                numTokenDiffs++;
-              }
-              else {
-                tokenDiffs.add(Pair.of(doc1.getToken(m), doc2.getToken(n)));
-                m++;
-                n++;
-                numTokenDiffs += 2;
-              }
+            final List<int[]> anchors = pairRepeats == null ? null :
+                getAnchors(pairRepeats, run, segment);
+            if (anchors != null && anchors.isEmpty()) {
+              continue;
             }
 
-            if (tokenDiffs.size() > 0) {
-              final List<Token> tokens1 = new ArrayList<>();
-              final List<Token> tokens2 = new ArrayList<>();
-              for (final Pair<Token,Token> tokenDiff : tokenDiffs) {
-                final Token token1 = tokenDiff.getFirst();
-                final Token token2 = tokenDiff.getSecond();
-                if (token1 != null && token2 != null) {
-                  if (tokens1.size() > 0 || tokens2.size() > 0) {
-                    numTokenDiffs -= addDiff(link, tokens1, tokens2);
-                    tokens1.clear();
-                    tokens2.clear();
-                  }
-                  numTokenDiffs -= addDiff(link,
-                      Collections.singletonList(token1),
-                      Collections.singletonList(token2));
-                }
-                else if (token1 != null) {
-                  tokens1.add(token1);
-                }
-                else if (token2 != null) {
-                  tokens2.add(token2);
-                }
-              }
-              if (tokens1.size() > 0 || tokens2.size() > 0) {
-                numTokenDiffs -= addDiff(link, tokens1, tokens2);
-                tokens1.clear();
-                tokens2.clear();
+            final int runLength = run[1] - run[0];
+            seq1 = arena.getTokenIDs(x, run[0], run[1], seq1);
+            final List<TokenAlignment> alignments;
+            if (sentences2 != null) {
+              final int[][] sentences1 = getSentences(corpus, sentenceIDs, x,
+                  run, numSentenceIDs);
+              log.finest("Running Sentence Alignment on Documents: ({0}, {1}) " +
+                  "  ({2} sentences, {3} sentences)", x, y,
+                  sentences1[1].length, sentences2[1].length);
+              final long cells = sentenceAligner.getNumCells();
+              alignments = sentenceAligner.alignMulti(
+                  seq1, runLength, sentences1[0], sentences1[1],
+                  sentences1[1].length,
+                  seq2, length2, sentences2[0], sentences2[1],
+                  sentences2[1].length, minScore);
+              numCells += sentenceAligner.getNumCells() - cells;
+            }
+            else if (anchors == null) {
+              if (TokenAligner.canAlign(runLength, length2) == false) {
+                log.warning("Skipping documents ({0}, {1}): {2} x {3} " +
+                    "tokens are too many to align", corpus.getDocumentID(x),
+                    corpus.getDocumentID(y), runLength, length2);
+                numSkipped++;
+                continue;
               }
-              assert numTokenDiffs == 0;
+              log.finest("Running Local Sequence Alignment on Documents: ({0}, {1}) " +
+                  "  ({2} tokens, {3} tokens)", x, y, runLength, length2);
+              numCells += (long) runLength * length2;
+              alignments = aligner.alignMulti(seq1, runLength, seq2, length2,
+                  minScore);
             }
+            else {
+              log.finest("Running Anchored Alignment on Documents: ({0}, {1}) " +
+                  "  ({2} anchors)", x, y, anchors.size());
+              final long cells = anchoredAligner.getNumCells();
+              alignments = anchoredAligner.alignMulti(seq1, runLength, seq2,
+                  length2, anchors, minScore);
+              numCells += anchoredAligner.getNumCells() - cells;
+            }
+            for (final TokenAlignment alignment : alignments) {
+              log.finest("--------------------------------------------------");
+              log.finer("Alignment: {0} - {1} [{2},{3}) from [{4},{5})",
+                  corpus.getDocumentID(x), corpus.getDocumentID(y),
+                  segment[0], segment[1], 0, arena.getTokenLength(y));
+              log.finer("Alignment Score: {0}", alignment.score);
+              if (log.pico()) {
+                log.pico("{0}", pretty(corpus, x, y, run[0], segment[0],
+                    alignment));
+              }
 
-            link.attach();
+              final LinkRecord record = toRecord(x, y, run[0], segment[0],
+                  alignment);
+              assert linked.isLinked(y, record.getDestStart(),
+                  record.getDestEnd()) == false : "segmenting error";
+              linked.add(y, record.getDestStart(), record.getDestEnd());
+              records.add(record);
+            }
           }
         }
       }
+
+      if (checkpoint != null &&
+          (checkpoint.isDue() || y + 1 == arena.size())) {
+        checkpoint.write(this, corpus, y + 1, records,
+            new long[] {numPairs, numBoundPruned, numOverlapPruned,
+                        numCells, numMaskedCells});
+        if (checkpoint.isExpired() && y + 1 < arena.size()) {
+          log.info("Time limit reached after {0} of {1} documents",
+              y + 1, arena.size());
+          return records;
+        }
+      }
+    }
+    log.info("Score bound pruned {0} of {1} segment pairs " +
+        "(set-overlap check: {2})", numBoundPruned, numPairs, numOverlapPruned);
+    log.info("Aligned {0} DP cells", numCells);
+    if (numSkipped > 0) {
+      log.warning("Skipped {0} segment pairs too long to align, use " +
+          "--anchor or --sentences to align them", numSkipped);
+    }
+    if (boilerplate != null) {
+      log.info("Boilerplate masking removed {0} DP cells from the document " +
+          "pairs", numMaskedCells);
+    }
+    return records;
+  }
+
+  /**
+   * Returns the anchors, as <code>{srcStart, destStart, length}</code>
+   * relative to the source <var>run</var> and destination
+   * <var>segment</var>, of the parts of the exact <var>repeats</var> that
+   * have at least the anchor length inside both, ordered by destination.
+   */
+  private List<int[]> getAnchors(final List<ExactRepeat> repeats,
+                                 final int[] run, final int[] segment) {
+    final List<int[]> anchors = new ArrayList<>();
+    boolean sorted = true;
+    for (final ExactRepeat repeat : repeats) {
+      final int start = Math.max(0, Math.max(segment[0] - repeat.destStart,
+                                             run[0] - repeat.srcStart));
+      final int end = Math.min(repeat.length,
+                               Math.min(segment[1] - repeat.destStart,
+                                        run[1] - repeat.srcStart));
+      if (end - start >= anchorLength) {
+        final int[] anchor = {repeat.srcStart + start - run[0],
+                              repeat.destStart + start - segment[0],
+                              end - start};
+        if (anchors.isEmpty() == false &&
+            anchors.get(anchors.size() - 1)[1] > anchor[1]) {
+          sorted = false;
+        }
+        anchors.add(anchor);
+      }
+    }
+    // Clipping to the source run can re-order them
+    if (sorted == false) {
+      Collections.sort(anchors, new Comparator<int[]>() {
+        @Override
+        public int compare(final int[] a1, final int[] a2) {
+          return Integer.compare(a1[1], a2[1]);
+        }
+      });
+    }
+    return anchors;
+  }
+
+  /**
+   * Returns the sentences of the <var>document</var> in the token
+   * <var>range</var> as <code>{bounds, ids}</code>: sentence <var>n</var>
+   * covers the tokens <code>[bounds[n], bounds[n+1])</code> relative to the
+   * range and has the ID <code>ids[n]</code>.  Sentences cut by the range
+   * get the ID <var>cutID</var>, which no whole sentence has.
+   */
+  private static int[][] getSentences(final Corpus corpus,
+                                      final int[][] sentenceIDs,
+                                      final int document, final int[] range,
+                                      final int cutID) {
+    final int[] starts = corpus.getSentenceStarts(document);
+    final int length = corpus.getArena().getTokenLength(document);
+    int first = Arrays.binarySearch(starts, range[0]);
+    if (first < 0) {
+      first = -first - 2;
+    }
+    int last = first;
+    while (last < starts.length && starts[last] < range[1]) {
+      last++;
+    }
+    final int[] bounds = new int[last - first + 1];
+    final int[] ids = new int[last - first];
+    for (int i = first; i < last; i++) {
+      final int start = starts[i];
+      final int end = i + 1 < starts.length ? starts[i+1] : length;
+      bounds[i - first] = Math.max(start, range[0]) - range[0];
+      ids[i - first] = start < range[0] || end > range[1] ? cutID :
+          sentenceIDs[document][i];
     }
+    bounds[last - first] = range[1] - range[0];
+    return new int[][] {bounds, ids};
+  }
+
+  /**
+   * Creates the {@link LinkRecord} for an <var>alignment</var> of the run
+   * starting at token <var>srcShift</var> of the source document <var>x</var>
+   * and the segment starting at token <var>shift</var> of the destination
+   * document <var>y</var>.  Adjacent insertions and
+   * deletions are grouped into a single difference, substitutions are kept
+   * as single-token differences.
+   */
+  private static LinkRecord toRecord(final int x, final int y,
+                                     final int srcShift, final int shift,
+                                     final TokenAlignment alignment) {
+    final LinkRecord record = new LinkRecord(
+        y, shift + alignment.start2, shift + alignment.end2,
+        x, srcShift + alignment.start1, srcShift + alignment.end1);
+    int m = srcShift + alignment.start1;
+    int n = shift + alignment.start2;
+    int first1 = -1;
+    int last1 = -1;
+    int first2 = -1;
+    int last2 = -1;
+    for (final byte op : alignment.ops) {
+      if (op == TokenAlignment.MATCH) {
+        m++;
+        n++;
+      }
+      else if (op == TokenAlignment.INSERT) {
+        if (first2 < 0) {
+          first2 = n;
+        }
+        last2 = n;
+        n++;
+      }
+      else if (op == TokenAlignment.DELETE) {
+        if (first1 < 0) {
+          first1 = m;
+        }
+        last1 = m;
+        m++;
+      }
+      else {
+        if (first1 >= 0 || first2 >= 0) {
+          addDiff(record, first1, last1, first2, last2);
+          first1 = last1 = first2 = last2 = -1;
+        }
+        addDiff(record, m, m, n, n);
+        m++;
+        n++;
+      }
+    }
+    if (first1 >= 0 || first2 >= 0) {
+      addDiff(record, first1, last1, first2, last2);
+    }
+    return record;
+  }
+
+  /**
+   * Adds a text difference covering the (inclusive) source tokens
+   * <var>first1</var> to <var>last1</var> and destination tokens
+   * <var>first2</var> to <var>last2</var> to the {@link LinkRecord}.  A
+   * missing side is <code>-1</code>.
+   */
+  private static void addDiff(final LinkRecord record,
+                              final int first1, final int last1,
+                              final int first2, final int last2) {
+    log.finer("adding diff: {0} vs {1}",
+        first1 < 0 ? null : "[" + first1 + "," + (last1 + 1) + ")",
+        first2 < 0 ? null : "[" + first2 + "," + (last2 + 1) + ")");
+    record.addDiff(first1, first1 < 0 ? -1 : last1 + 1,
+                   first2, first2 < 0 ? -1 : last2 + 1);
+  }
+
+  /**
+   * Returns a printable table of an <var>alignment</var> (see
+   * {@link #toRecord}).
+   */
+  private static String pretty(final Corpus corpus, final int x, final int y,
+                               final int srcShift, final int shift,
+                               final TokenAlignment alignment) {
+    final TokenArena arena = corpus.getArena();
+    final Alignment table = new Alignment();
+    table.sequence1 = new String[alignment.ops.length];
+    table.sequence2 = new String[alignment.ops.length];
+    int m = srcShift + alignment.start1;
+    int n = shift + alignment.start2;
+    for (int i = 0; i < alignment.ops.length; i++) {
+      final byte op = alignment.ops[i];
+      table.sequence1[i] = op == TokenAlignment.INSERT ? Alignment.GAP :
+          corpus.getWord(arena.getTokenID(x, m++));
+      table.sequence2[i] = op == TokenAlignment.DELETE ? Alignment.GAP :
+          corpus.getWord(arena.getTokenID(y, n++));
+    }
+    return table.pretty();
+  }
+
+  /**
+   * Returns the number of (source run, target segment) pairs considered by the
+   * last {@link #findLinks} call.
+   */
+  public int getNumPairs() {
+    return numPairs;
+  }
+
+  /**
+   * Returns the number of pairs skipped by the {@link ScoreBound} in the last
+   * {@link #findLinks} call.
+   */
+  public int getNumBoundPruned() {
+    return numBoundPruned;
+  }
+
+  /**
+   * Returns the number of pairs skipped in the last {@link #findLinks} call
+   * because they were too long for the {@link TokenAligner}.
+   */
+  public int getNumSkipped() {
+    return numSkipped;
+  }
+
+  /**
+   * Returns the number of dynamic programming cells (source tokens times
+   * destination tokens) of the alignments in the last {@link #findLinks}
+   * call, not counting the re-computations for multiple alignments.
+   */
+  public long getNumCells() {
+    return numCells;
+  }
+
+  /**
+   * Returns the number of dynamic programming cells the boilerplate masking
+   * removed from the document pairs of the last {@link #findLinks} call,
+   * before any of them were pruned.
+   */
+  public long getNumMaskedCells() {
+    return numMaskedCells;
   }
 
   /**
-   * Adds a text difference to the {@link Link}.  Returns the number of
-   * {@link Token}s affected by the difference.
+   * Returns the number of pairs the former distinct-word set-overlap check
+   * would have skipped in the last {@link #findLinks} call.  That check
+   * is not admissible, so it may skip pairs that contain duplicates.
    */
-  private static int addDiff(final Link link,
-                             final List<Token> tokens1,
-                             final List<Token> tokens2) {
-    final Text text1 = tokens1.isEmpty() ? null :
-        tokens1.get(0).union(tokens1.get(tokens1.size()-1));
-    final Text text2 = tokens2.isEmpty() ? null :
-        tokens2.get(0).union(tokens2.get(tokens2.size()-1));
-    log.finer("adding diff: {0} vs {1}", text1, text2);
-    link.addDiff(text1, text2);
-    return tokens1.size() + tokens2.size();
+  public int getNumOverlapPruned() {
+    return numOverlapPruned;
   }
 
 }
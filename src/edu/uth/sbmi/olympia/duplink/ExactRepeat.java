@@ -0,0 +1,46 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.util.*;
+
+/**
+ * A maximal exact repeat of tokens between an earlier source document and a
+ * later destination document of a {@link Corpus}, as found by
+ * {@link SuffixArray#findRepeats}.  The repeat cannot be extended by a token
+ * to either side.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class ExactRepeat {
+  private static final Log log = new Log(ExactRepeat.class);
+
+  /** Index of the source document. */
+  public final int srcDocument;
+  /** First token of the repeat in the source. */
+  public final int srcStart;
+  /** Index of the destination document. */
+  public final int destDocument;
+  /** First token of the repeat in the destination. */
+  public final int destStart;
+  /** Number of tokens of the repeat. */
+  public final int length;
+
+  /**
+   * Creates a new <code>ExactRepeat</code>.
+   */
+  public ExactRepeat(final int srcDocument, final int srcStart,
+                     final int destDocument, final int destStart,
+                     final int length) {
+    this.srcDocument = srcDocument;
+    this.srcStart = srcStart;
+    this.destDocument = destDocument;
+    this.destStart = destStart;
+    this.length = length;
+  }
+
+  @Override
+  public String toString() {
+    return srcDocument + ":[" + srcStart + "," + (srcStart + length) + ") -> " +
+           destDocument + ":[" + destStart + "," + (destStart + length) + ")";
+  }
+
+}
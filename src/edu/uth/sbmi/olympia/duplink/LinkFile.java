@@ -0,0 +1,630 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.util.*;
+import edu.uth.sbmi.olympia.util.io.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.text.*;
+import java.util.*;
+
+/**
+ * Compact binary file of the duplicate links of a run, read through
+ * memory-mapped random access.  It holds the same information as the
+ * annotation output of {@link RunDupLink} (and converts back to it exactly),
+ * plus the differences of each link, in fixed-width records:
+ * <ul>
+ *   <li>a <i>link</i> per duplicate span: destination document and character
+ *       range, cluster, source overlap, and its differences,</li>
+ *   <li>a <i>cluster</i> per source span: duplicate ID, source document and
+ *       character range, and its member links,</li>
+ *   <li>a <i>difference</i> per changed range of a link: source and
+ *       destination character ranges, <code>-1</code> for a missing
+ *       side.</li>
+ * </ul>
+ * Links are ordered by destination document and start, with an offset index
+ * per document, and clusters are indexed by source document and by
+ * duplicate ID, so finding the duplicates of a note or the members of a
+ * cluster does not read the rest of the file.
+ * <p>
+ * All numbers are big-endian.  Each section is mapped separately, so no
+ * section may exceed 2GB (about 60 million links).
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class LinkFile implements Closeable {
+  private static final Log log = new Log(LinkFile.class);
+  private static final int MAGIC = 0x444C4C46;
+  private static final int VERSION = 1;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final int NUM_SECTIONS = 11;
+  private static final int HEADER_SIZE = 6 * 4 + NUM_SECTIONS * 8;
+  private static final int CLUSTER_SIZE = 6 * 4;
+  private static final int LINK_SIZE = 6 * 4 + 8;
+  private static final int DIFF_SIZE = 4 * 4;
+
+  // Sections, in file order
+  private static final int DOCUMENT_ID_OFFSETS = 0;
+  private static final int DOCUMENT_ID_BYTES = 1;
+  private static final int DOCUMENTS_BY_ID = 2;
+  private static final int DOCUMENT_LINKS = 3;
+  private static final int DOCUMENT_CLUSTERS = 4;
+  private static final int CLUSTERS = 5;
+  private static final int CLUSTERS_BY_SOURCE = 6;
+  private static final int CLUSTERS_BY_ID = 7;
+  private static final int CLUSTER_MEMBERS = 8;
+  private static final int LINKS = 9;
+  private static final int DIFFS = 10;
+
+  private final RandomAccessFile file;
+  private final int numDocuments;
+  private final int numClusters;
+  private final int numLinks;
+  private final int numDiffs;
+  private final ByteBuffer[] sections = new ByteBuffer[NUM_SECTIONS];
+
+  /**
+   * Opens and maps the given link file.
+   */
+  private LinkFile(final Place place) throws IOException {
+    file = new RandomAccessFile(place.toFile(), "r");
+    try {
+      final FileChannel channel = file.getChannel();
+      final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY,
+          0, Math.min(HEADER_SIZE, channel.size()));
+      if (header.capacity() < HEADER_SIZE || header.getInt(0) != MAGIC ||
+          header.getInt(4) != VERSION) {
+        throw new IOException("Not a link file: " + place);
+      }
+      numDocuments = header.getInt(8);
+      numClusters = header.getInt(12);
+      numLinks = header.getInt(16);
+      numDiffs = header.getInt(20);
+      for (int s = 0; s < NUM_SECTIONS; s++) {
+        final long start = header.getLong(24 + 8 * s);
+        final long end = s + 1 < NUM_SECTIONS ?
+            header.getLong(24 + 8 * (s + 1)) : channel.size();
+        if (start < HEADER_SIZE || end < start || end > channel.size()) {
+          throw new IOException("Corrupt link file: " + place);
+        }
+        sections[s] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+            end - start);
+      }
+      if (sections[LINKS].capacity() != (long) LINK_SIZE * numLinks ||
+          sections[DIFFS].capacity() != (long) DIFF_SIZE * numDiffs) {
+        throw new IOException("Truncated link file: " + place);
+      }
+    }
+    catch (IOException ioe) {
+      file.close();
+      throw ioe;
+    }
+    log.fine("Link file: {0} documents, {1} clusters, {2} links",
+        numDocuments, numClusters, numLinks);
+  }
+
+  /**
+   * Opens the given link file for reading.
+   */
+  public static LinkFile open(final Place place) throws IOException {
+    return new LinkFile(place);
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  /**
+   * Returns the number of documents of the run.
+   */
+  public int getNumDocuments() {
+    return numDocuments;
+  }
+
+  /**
+   * Returns the number of clusters (distinct source spans).
+   */
+  public int getNumClusters() {
+    return numClusters;
+  }
+
+  /**
+   * Returns the number of links (duplicate spans).
+   */
+  public int getNumLinks() {
+    return numLinks;
+  }
+
+  private int getInt(final int section, final int index) {
+    return sections[section].getInt(4 * index);
+  }
+
+  /**
+   * Returns the ID of the <var>document</var>th document.
+   */
+  public String getDocumentID(final int document) {
+    final int start = getInt(DOCUMENT_ID_OFFSETS, document);
+    final int end = getInt(DOCUMENT_ID_OFFSETS, document + 1);
+    final byte[] bytes = new byte[end - start];
+    final ByteBuffer buffer = sections[DOCUMENT_ID_BYTES].duplicate();
+    buffer.position(start);
+    buffer.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * Returns the index of the document with the given ID, or
+   * <code>-1</code> if there is none.
+   */
+  public int findDocument(final String documentID) {
+    int low = 0;
+    int high = numDocuments;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      final int document = getInt(DOCUMENTS_BY_ID, mid);
+      final int c = getDocumentID(document).compareTo(documentID);
+      if (c == 0) {
+        return document;
+      }
+      else if (c < 0) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the index of the first link whose destination is the given
+   * <var>document</var>.  The links of the document end at the first link
+   * of the next document (or the number of links for the last).
+   */
+  public int getFirstLink(final int document) {
+    return getInt(DOCUMENT_LINKS, document);
+  }
+
+  /**
+   * Returns the number of clusters whose source is in the given
+   * <var>document</var>.
+   */
+  public int getNumSourceClusters(final int document) {
+    return getInt(DOCUMENT_CLUSTERS, document + 1) -
+           getInt(DOCUMENT_CLUSTERS, document);
+  }
+
+  /**
+   * Returns the <var>i</var>th cluster, by start, whose source is in the
+   * given <var>document</var>.
+   */
+  public int getSourceCluster(final int document, final int i) {
+    return getInt(CLUSTERS_BY_SOURCE, getInt(DOCUMENT_CLUSTERS, document) + i);
+  }
+
+  /**
+   * Returns the indexes of the clusters with the given duplicate ID, in
+   * order.  Duplicate IDs are 32-bit hashes of the source spans, so in a
+   * large run more than one cluster may have the same ID.
+   */
+  public int[] findClusters(final String clusterID) {
+    final int id;
+    try {
+      id = Integer.parseUnsignedInt(clusterID, 16);
+    }
+    catch (NumberFormatException nfe) {
+      return new int[0];
+    }
+    int low = 0;
+    int high = numClusters;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      final int cluster = getInt(CLUSTERS_BY_ID, mid);
+      if (Integer.compareUnsigned(getClusterInt(cluster, 0), id) < 0) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
+    }
+    int end = low;
+    while (end < numClusters &&
+           getClusterInt(getInt(CLUSTERS_BY_ID, end), 0) == id) {
+      end++;
+    }
+    final int[] clusters = new int[end - low];
+    for (int i = 0; i < clusters.length; i++) {
+      clusters[i] = getInt(CLUSTERS_BY_ID, low + i);
+    }
+    return clusters;
+  }
+
+  private int getClusterInt(final int cluster, final int field) {
+    return sections[CLUSTERS].getInt(CLUSTER_SIZE * cluster + 4 * field);
+  }
+
+  /**
+   * Returns the duplicate ID of a <var>cluster</var>.
+   */
+  public String getClusterID(final int cluster) {
+    return String.format("%08x", getClusterInt(cluster, 0));
+  }
+
+  /**
+   * Returns the source document of a <var>cluster</var>.
+   */
+  public int getSourceDocument(final int cluster) {
+    return getClusterInt(cluster, 1);
+  }
+
+  /**
+   * Returns the inclusive start character offset of the source of a
+   * <var>cluster</var>.
+   */
+  public int getSourceStart(final int cluster) {
+    return getClusterInt(cluster, 2);
+  }
+
+  /**
+   * Returns the exclusive end character offset of the source of a
+   * <var>cluster</var>.
+   */
+  public int getSourceEnd(final int cluster) {
+    return getClusterInt(cluster, 3);
+  }
+
+  /**
+   * Returns the number of links of a <var>cluster</var>.
+   */
+  public int getNumMembers(final int cluster) {
+    return getClusterInt(cluster, 5);
+  }
+
+  /**
+   * Returns the <var>i</var>th link of a <var>cluster</var>, in the order of
+   * the annotation output.
+   */
+  public int getMember(final int cluster, final int i) {
+    return getInt(CLUSTER_MEMBERS, getClusterInt(cluster, 4) + i);
+  }
+
+  private int getLinkInt(final int link, final int field) {
+    return sections[LINKS].getInt(LINK_SIZE * link + 4 * field);
+  }
+
+  /**
+   * Returns the destination document of a <var>link</var>.
+   */
+  public int getDocument(final int link) {
+    return getLinkInt(link, 0);
+  }
+
+  /**
+   * Returns the inclusive start character offset of a <var>link</var>.
+   */
+  public int getStart(final int link) {
+    return getLinkInt(link, 1);
+  }
+
+  /**
+   * Returns the exclusive end character offset of a <var>link</var>.
+   */
+  public int getEnd(final int link) {
+    return getLinkInt(link, 2);
+  }
+
+  /**
+   * Returns the cluster of a <var>link</var>.
+   */
+  public int getCluster(final int link) {
+    return getLinkInt(link, 3);
+  }
+
+  /**
+   * Returns the percent of the source tokens of a <var>link</var> that are
+   * not part of a difference.
+   */
+  public double getOverlap(final int link) {
+    return sections[LINKS].getDouble(LINK_SIZE * link + 24);
+  }
+
+  /**
+   * Returns the number of differences of a <var>link</var>.
+   */
+  public int getNumDiffs(final int link) {
+    return getLinkInt(link, 5);
+  }
+
+  /**
+   * Returns the <var>i</var>th difference of a <var>link</var> as
+   * <code>{srcStart, srcEnd, destStart, destEnd}</code> character offsets,
+   * <code>-1</code> for a missing side.
+   */
+  public int[] getDiff(final int link, final int i) {
+    final int offset = DIFF_SIZE * (getLinkInt(link, 4) + i);
+    final ByteBuffer diffs = sections[DIFFS];
+    return new int[] {diffs.getInt(offset), diffs.getInt(offset + 4),
+                      diffs.getInt(offset + 8), diffs.getInt(offset + 12)};
+  }
+
+  /**
+   * Writes the annotation lines (without the header line) of a
+   * <var>cluster</var>: its source, then its links.
+   */
+  public void writeCluster(final int cluster,
+                           final Writer writer) throws IOException {
+    final DecimalFormat OVERLAP_FORMAT = new DecimalFormat("0.00");
+    final String clusterID = getClusterID(cluster);
+    writer.write(getDocumentID(getSourceDocument(cluster)) + " " + clusterID +
+        " " + getSourceStart(cluster) + " " + getSourceEnd(cluster) + " *\n");
+    for (int i = 0; i < getNumMembers(cluster); i++) {
+      final int link = getMember(cluster, i);
+      writer.write(getDocumentID(getDocument(link)) + " " + clusterID + " " +
+          getStart(link) + " " + getEnd(link) + " " +
+          OVERLAP_FORMAT.format(getOverlap(link)) + "\n");
+    }
+  }
+
+  /**
+   * Writes the links in the annotation format of {@link RunDupLink},
+   * including the header line.
+   */
+  public void writeAnnotations(final Writer writer) throws IOException {
+    writer.write("document_id duplicate_id char_start char_end overlap_per\n");
+    for (int c = 0; c < numClusters; c++) {
+      writeCluster(c, writer);
+    }
+  }
+
+  /**
+   * Writes the given {@link LinkRecord}s of a run on the {@link Corpus} to a
+   * link <var>file</var>.  The clusters, their duplicate IDs, and their
+   * order are the same as in
+   * {@link RunDupLink#writeAnnotations(List,Corpus,Writer)}.
+   */
+  public static void write(final List<LinkRecord> records,
+                           final Corpus corpus,
+                           final Place file) throws IOException {
+    final TokenArena arena = corpus.getArena();
+    final int numDocuments = corpus.size();
+    final int numLinks = records.size();
+
+    // Clusters by source span, in order of appearance
+    final Map<String,Integer> clusterIndex = new HashMap<>();
+    final List<LinkRecord> sources = new ArrayList<>();
+    final int[] recordClusters = new int[numLinks];
+    final int[] numMembers = new int[numLinks];
+    for (int r = 0; r < numLinks; r++) {
+      final LinkRecord record = records.get(r);
+      final int src = record.getSourceDocument();
+      final String srcKey = corpus.getDocumentID(src) + ":" +
+          arena.getStartCharOffset(src, record.getSourceStart()) + "-" +
+          arena.getEndCharOffset(src, record.getSourceEnd() - 1);
+      Integer cluster = clusterIndex.get(srcKey);
+      if (cluster == null) {
+        cluster = sources.size();
+        clusterIndex.put(srcKey, cluster);
+        sources.add(record);
+      }
+      recordClusters[r] = cluster;
+      numMembers[cluster]++;
+    }
+    final int numClusters = sources.size();
+    final int[] clusterIDs = new int[numClusters];
+    for (final Map.Entry<String,Integer> e : clusterIndex.entrySet()) {
+      clusterIDs[e.getValue()] = Integer.parseUnsignedInt(
+          IOUtil.md5sum(e.getKey()).substring(0, 8), 16);
+    }
+
+    // Links by destination document and start
+    final Integer[] linkOrder = new Integer[numLinks];
+    for (int r = 0; r < numLinks; r++) {
+      linkOrder[r] = r;
+    }
+    Arrays.sort(linkOrder, new Comparator<Integer>() {
+      @Override
+      public int compare(final Integer r1, final Integer r2) {
+        final LinkRecord l1 = records.get(r1);
+        final LinkRecord l2 = records.get(r2);
+        final int c = Integer.compare(l1.getDestDocument(),
+                                      l2.getDestDocument());
+        return c != 0 ? c : Integer.compare(l1.getDestStart(),
+                                            l2.getDestStart());
+      }
+    });
+    final int[] recordLinks = new int[numLinks];
+    for (int l = 0; l < numLinks; l++) {
+      recordLinks[linkOrder[l]] = l;
+    }
+    int numDiffs = 0;
+    for (final LinkRecord record : records) {
+      numDiffs += record.getNumDiffs();
+    }
+
+    // Cluster members, in record order
+    final int[] firstMembers = new int[numClusters];
+    for (int c = 1; c < numClusters; c++) {
+      firstMembers[c] = firstMembers[c-1] + numMembers[c-1];
+    }
+    final int[] members = new int[numLinks];
+    final int[] filled = new int[numClusters];
+    for (int r = 0; r < numLinks; r++) {
+      final int cluster = recordClusters[r];
+      members[firstMembers[cluster] + filled[cluster]++] = recordLinks[r];
+    }
+
+    final byte[][] documentIDs = new byte[numDocuments][];
+    int numIDBytes = 0;
+    for (int d = 0; d < numDocuments; d++) {
+      documentIDs[d] = corpus.getDocumentID(d).getBytes(UTF8);
+      numIDBytes += documentIDs[d].length;
+    }
+    final Integer[] documentsByID = new Integer[numDocuments];
+    for (int d = 0; d < numDocuments; d++) {
+      documentsByID[d] = d;
+    }
+    Arrays.sort(documentsByID, new Comparator<Integer>() {
+      @Override
+      public int compare(final Integer d1, final Integer d2) {
+        return corpus.getDocumentID(d1).compareTo(corpus.getDocumentID(d2));
+      }
+    });
+    final Integer[] clustersBySource = new Integer[numClusters];
+    final Integer[] clustersByID = new Integer[numClusters];
+    for (int c = 0; c < numClusters; c++) {
+      clustersBySource[c] = c;
+      clustersByID[c] = c;
+    }
+    Arrays.sort(clustersBySource, new Comparator<Integer>() {
+      @Override
+      public int compare(final Integer c1, final Integer c2) {
+        final LinkRecord s1 = sources.get(c1);
+        final LinkRecord s2 = sources.get(c2);
+        final int c = Integer.compare(s1.getSourceDocument(),
+                                      s2.getSourceDocument());
+        return c != 0 ? c : Integer.compare(s1.getSourceStart(),
+                                            s2.getSourceStart());
+      }
+    });
+    // Stable, so clusters with the same ID stay in order
+    Arrays.sort(clustersByID, new Comparator<Integer>() {
+      @Override
+      public int compare(final Integer c1, final Integer c2) {
+        return Integer.compareUnsigned(clusterIDs[c1], clusterIDs[c2]);
+      }
+    });
+
+    final long[] sizes = new long[NUM_SECTIONS];
+    sizes[DOCUMENT_ID_OFFSETS] = 4L * (numDocuments + 1);
+    sizes[DOCUMENT_ID_BYTES] = numIDBytes;
+    sizes[DOCUMENTS_BY_ID] = 4L * numDocuments;
+    sizes[DOCUMENT_LINKS] = 4L * (numDocuments + 1);
+    sizes[DOCUMENT_CLUSTERS] = 4L * (numDocuments + 1);
+    sizes[CLUSTERS] = (long) CLUSTER_SIZE * numClusters;
+    sizes[CLUSTERS_BY_SOURCE] = 4L * numClusters;
+    sizes[CLUSTERS_BY_ID] = 4L * numClusters;
+    sizes[CLUSTER_MEMBERS] = 4L * numLinks;
+    sizes[LINKS] = (long) LINK_SIZE * numLinks;
+    sizes[DIFFS] = (long) DIFF_SIZE * numDiffs;
+    for (final long size : sizes) {
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Too many links for a link file: " + numLinks);
+      }
+    }
+
+    final DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(file.openOutputStream()));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(numDocuments);
+      out.writeInt(numClusters);
+      out.writeInt(numLinks);
+      out.writeInt(numDiffs);
+      long offset = HEADER_SIZE;
+      for (final long size : sizes) {
+        out.writeLong(offset);
+        offset += size;
+      }
+
+      // Documents
+      int idOffset = 0;
+      out.writeInt(idOffset);
+      for (final byte[] documentID : documentIDs) {
+        idOffset += documentID.length;
+        out.writeInt(idOffset);
+      }
+      for (final byte[] documentID : documentIDs) {
+        out.write(documentID);
+      }
+      for (final int document : documentsByID) {
+        out.writeInt(document);
+      }
+      int l = 0;
+      for (int d = 0; d <= numDocuments; d++) {
+        while (l < numLinks && records.get(linkOrder[l]).getDestDocument() < d) {
+          l++;
+        }
+        out.writeInt(l);
+      }
+      int c = 0;
+      for (int d = 0; d <= numDocuments; d++) {
+        while (c < numClusters &&
+               sources.get(clustersBySource[c]).getSourceDocument() < d) {
+          c++;
+        }
+        out.writeInt(c);
+      }
+
+      // Clusters
+      for (int i = 0; i < numClusters; i++) {
+        final LinkRecord source = sources.get(i);
+        final int src = source.getSourceDocument();
+        out.writeInt(clusterIDs[i]);
+        out.writeInt(src);
+        out.writeInt(arena.getStartCharOffset(src, source.getSourceStart()));
+        out.writeInt(arena.getEndCharOffset(src, source.getSourceEnd() - 1));
+        out.writeInt(firstMembers[i]);
+        out.writeInt(numMembers[i]);
+      }
+      for (final int cluster : clustersBySource) {
+        out.writeInt(cluster);
+      }
+      for (final int cluster : clustersByID) {
+        out.writeInt(cluster);
+      }
+      for (final int member : members) {
+        out.writeInt(member);
+      }
+
+      // Links, with the overlap as in the annotation output
+      int firstDiff = 0;
+      for (final int r : linkOrder) {
+        final LinkRecord record = records.get(r);
+        final LinkRecord source = sources.get(recordClusters[r]);
+        final int dest = record.getDestDocument();
+        final int srcLen = source.getSourceEnd() - source.getSourceStart();
+        int tokenOverlap = srcLen;
+        for (int i = 0; i < record.getNumDiffs(); i++) {
+          final int[] diff = record.getDiff(i);
+          if (diff[0] >= 0) {
+            tokenOverlap -= diff[1] - diff[0];
+          }
+        }
+        out.writeInt(dest);
+        out.writeInt(arena.getStartCharOffset(dest, record.getDestStart()));
+        out.writeInt(arena.getEndCharOffset(dest, record.getDestEnd() - 1));
+        out.writeInt(recordClusters[r]);
+        out.writeInt(firstDiff);
+        out.writeInt(record.getNumDiffs());
+        out.writeDouble(100.0 * tokenOverlap / srcLen);
+        firstDiff += record.getNumDiffs();
+      }
+      for (final int r : linkOrder) {
+        final LinkRecord record = records.get(r);
+        final int src = record.getSourceDocument();
+        final int dest = record.getDestDocument();
+        for (int i = 0; i < record.getNumDiffs(); i++) {
+          final int[] diff = record.getDiff(i);
+          out.writeInt(diff[0] < 0 ? -1 :
+              arena.getStartCharOffset(src, diff[0]));
+          out.writeInt(diff[0] < 0 ? -1 :
+              arena.getEndCharOffset(src, diff[1] - 1));
+          out.writeInt(diff[2] < 0 ? -1 :
+              arena.getStartCharOffset(dest, diff[2]));
+          out.writeInt(diff[2] < 0 ? -1 :
+              arena.getEndCharOffset(dest, diff[3] - 1));
+        }
+      }
+    }
+    finally {
+      out.close();
+    }
+    log.fine("Wrote link file: {0} documents, {1} clusters, {2} links",
+        numDocuments, numClusters, numLinks);
+  }
+
+}
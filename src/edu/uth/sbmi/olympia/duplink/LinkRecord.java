@@ -0,0 +1,151 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.text.*;
+import edu.uth.sbmi.olympia.util.*;
+
+import java.util.*;
+
+/**
+ * Token offsets of a {@link Link} between a duplicate section and its source,
+ * found before any {@link Link} annotation is created.  Documents are
+ * referred to by their index in the {@link Corpus}, and all ranges are
+ * <code>[start, end)</code> token offsets.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class LinkRecord {
+  private static final Log log = new Log(LinkRecord.class);
+
+  private final int destDocument;
+  private final int destStart;
+  private final int destEnd;
+  private final int srcDocument;
+  private final int srcStart;
+  private final int srcEnd;
+  private int[] diffs = new int[0];
+  private int numDiffs = 0;
+
+  /**
+   * Creates a new <code>LinkRecord</code> from the given duplicate and source
+   * token ranges.
+   */
+  public LinkRecord(final int destDocument, final int destStart,
+                    final int destEnd, final int srcDocument,
+                    final int srcStart, final int srcEnd) {
+    this.destDocument = destDocument;
+    this.destStart = destStart;
+    this.destEnd = destEnd;
+    this.srcDocument = srcDocument;
+    this.srcStart = srcStart;
+    this.srcEnd = srcEnd;
+  }
+
+  /**
+   * Returns the index of the destination document.
+   */
+  public int getDestDocument() {
+    return destDocument;
+  }
+
+  /**
+   * Returns the first token of the destination.
+   */
+  public int getDestStart() {
+    return destStart;
+  }
+
+  /**
+   * Returns the token after the last token of the destination.
+   */
+  public int getDestEnd() {
+    return destEnd;
+  }
+
+  /**
+   * Returns the index of the source document.
+   */
+  public int getSourceDocument() {
+    return srcDocument;
+  }
+
+  /**
+   * Returns the first token of the source.
+   */
+  public int getSourceStart() {
+    return srcStart;
+  }
+
+  /**
+   * Returns the token after the last token of the source.
+   */
+  public int getSourceEnd() {
+    return srcEnd;
+  }
+
+  /**
+   * Adds a difference between the source and destination.  A missing side
+   * (a pure insertion or deletion) has a start and end of <code>-1</code>.
+   */
+  public void addDiff(final int diffSrcStart, final int diffSrcEnd,
+                      final int diffDestStart, final int diffDestEnd) {
+    if (4 * (numDiffs + 1) > diffs.length) {
+      diffs = Arrays.copyOf(diffs, Math.max(8, 2 * diffs.length));
+    }
+    diffs[4*numDiffs]   = diffSrcStart;
+    diffs[4*numDiffs+1] = diffSrcEnd;
+    diffs[4*numDiffs+2] = diffDestStart;
+    diffs[4*numDiffs+3] = diffDestEnd;
+    numDiffs++;
+  }
+
+  /**
+   * Returns the number of differences between the source and destination.
+   */
+  public int getNumDiffs() {
+    return numDiffs;
+  }
+
+  /**
+   * Returns the <var>i</var>th difference as a
+   * <code>{srcStart, srcEnd, destStart, destEnd}</code> array.
+   */
+  public int[] getDiff(final int i) {
+    assert i < numDiffs;
+    return Arrays.copyOfRange(diffs, 4*i, 4*i + 4);
+  }
+
+  /**
+   * Creates the (unattached) {@link Link} for this record on the given
+   * {@link Document}s, which must be in {@link Corpus} order.
+   */
+  public Link toLink(final List<Document> documents) {
+    return toLink(documents.get(destDocument), documents.get(srcDocument));
+  }
+
+  /**
+   * Creates the (unattached) {@link Link} for this record on the given
+   * destination and source {@link Document}s.
+   */
+  public Link toLink(final Document dest, final Document src) {
+    final Link link = new Link(span(dest, destStart, destEnd),
+                               span(src, srcStart, srcEnd));
+    for (int i = 0; i < numDiffs; i++) {
+      link.addDiff(span(src, diffs[4*i], diffs[4*i+1]),
+                   span(dest, diffs[4*i+2], diffs[4*i+3]));
+    }
+    return link;
+  }
+
+  /**
+   * Returns the {@link Text} covering the tokens <code>[start, end)</code>,
+   * or <code>null</code> for a missing side.
+   */
+  private static Text span(final Document document,
+                           final int start, final int end) {
+    if (start < 0) {
+      return null;
+    }
+    return document.getToken(start).union(document.getToken(end - 1));
+  }
+
+}
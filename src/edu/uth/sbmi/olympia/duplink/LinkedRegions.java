@@ -0,0 +1,101 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.util.*;
+
+import java.util.*;
+
+/**
+ * Disjoint token ranges of each document that are already the destination
+ * of a link, kept as sorted start/end arrays per document.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class LinkedRegions {
+  private static final Log log = new Log(LinkedRegions.class);
+
+  private final int[][] starts;
+  private final int[][] ends;
+  private final int[] sizes;
+
+  /**
+   * Creates a new, empty <code>LinkedRegions</code> for the given number of
+   * documents.
+   */
+  public LinkedRegions(final int numDocuments) {
+    starts = new int[numDocuments][];
+    ends = new int[numDocuments][];
+    sizes = new int[numDocuments];
+    for (int i = 0; i < numDocuments; i++) {
+      starts[i] = new int[4];
+      ends[i] = new int[4];
+    }
+  }
+
+  /**
+   * Returns the index of the first region of the <var>document</var> that
+   * ends after the given <var>token</var>.
+   */
+  private int search(final int document, final int token) {
+    int low = 0;
+    int high = sizes[document];
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (ends[document][mid] <= token) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Returns whether any token in <code>[start, end)</code> of the
+   * <var>document</var> is already linked.
+   */
+  public boolean isLinked(final int document, final int start, final int end) {
+    final int i = search(document, start);
+    return i < sizes[document] && starts[document][i] < end;
+  }
+
+  /**
+   * Marks the tokens <code>[start, end)</code> of the <var>document</var> as
+   * linked.  The range must not overlap an existing region.
+   */
+  public void add(final int document, final int start, final int end) {
+    assert start < end;
+    assert isLinked(document, start, end) == false : "overlapping region";
+    final int i = search(document, start);
+    final int size = sizes[document];
+    if (size == starts[document].length) {
+      starts[document] = Arrays.copyOf(starts[document], 2 * size);
+      ends[document] = Arrays.copyOf(ends[document], 2 * size);
+    }
+    System.arraycopy(starts[document], i, starts[document], i + 1, size - i);
+    System.arraycopy(ends[document], i, ends[document], i + 1, size - i);
+    starts[document][i] = start;
+    ends[document][i] = end;
+    sizes[document]++;
+  }
+
+  /**
+   * Returns the maximal unlinked token ranges of a <var>document</var> with
+   * <var>length</var> tokens, in order, as <code>{start, end}</code> pairs.
+   */
+  public List<int[]> getUnlinked(final int document, final int length) {
+    final List<int[]> segments = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i < sizes[document]; i++) {
+      if (start < starts[document][i]) {
+        segments.add(new int[] {start, starts[document][i]});
+      }
+      start = ends[document][i];
+    }
+    if (start < length) {
+      segments.add(new int[] {start, length});
+    }
+    return segments;
+  }
+
+}
@@ -0,0 +1,228 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.util.*;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * Command line functionality for looking up the duplicates of a document or
+ * cluster in a {@link LinkFile}, and for converting it to the annotation
+ * format of {@link RunDupLink}.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class QueryLinks {
+  private static final Log log = new Log(QueryLinks.class);
+
+  public static void main(String[] argv) throws Exception {
+    argv = Config.init("olympia.properties", argv);
+
+    final Logger baseLogger = Logger.getLogger(QueryLinks.class.getName());
+    baseLogger.setUseParentHandlers(false);
+
+    final ConsoleHandler handler = new ConsoleHandler();
+    handler.setLevel(Level.ALL);
+    handler.setFormatter(new LogFormatter(false));
+    baseLogger.addHandler(handler);
+
+    final String argumentStructure =
+        "Command: duplink-query [links] [parameters]\n" +
+        "    links:       [mandatory] binary link file (see duplink --binary)\n" +
+        "    --document:  [optional]  document ID: print the duplicate spans in the document and the spans copied from it\n" +
+        "    --cluster:   [optional]  duplicate_id: print the source and duplicate spans of the cluster\n" +
+        "    --diffs:     [optional]  whether to print the differences of each duplicate span (default: false). " +
+                                     "Value must be either 'true' or 'false'.\n" +
+        "    --text:      [optional]  annotation file (see duplink) to convert the link file to\n" +
+        "    --logging:   [optional]  logging level, options: [FINE, FINER, FINEST]\n" +
+        "\n" +
+        "One of --document, --cluster, or --text is required.\n" +
+        "\n" +
+        "Example: duplink-query duplink_out.bin --document 0090234 --diffs true\n" +
+        "\n" +
+        "Output: the spans in the annotation format (see duplink), followed by the source span of each duplicate as\n" +
+        "    [document_id]:[char_start]-[char_end]\n" +
+        "  and, with --diffs, one line per difference:\n" +
+        "    diff [source_char_start]-[source_char_end] [char_start]-[char_end]\n" +
+        "  where a missing side is '-'.  The spans of a --document copied by others are followed by '*' and their\n" +
+        "  number of duplicates instead.\n";
+
+    if (argv.length < 3 || argv.length % 2 != 1) {
+      log.severe("Improper number of arguments: {0}", argv.length);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+
+    final Place input = Place.fromFile(argv[0]);
+    String documentID = null;
+    String clusterID = null;
+    boolean diffs = false;
+    Place textFile = null;
+    for (int i = 1; i < argv.length; i += 2) {
+      if (argv[i].equals("--document")) {
+        documentID = argv[i+1];
+      }
+      else if (argv[i].equals("--cluster")) {
+        clusterID = argv[i+1].toLowerCase();
+      }
+      else if (argv[i].equals("--diffs")) {
+        final String value = argv[i+1].toLowerCase();
+        if (value.equals("true")) {
+          diffs = true;
+        }
+        else if (value.equals("false")) {
+          diffs = false;
+        }
+        else {
+          log.severe("Invalid diffs value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--text")) {
+        textFile = Place.fromFile(argv[i+1]);
+        if (textFile.exists()) {
+          log.severe("Output file already exists: {0}", textFile);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--logging")) {
+        final String value = argv[i+1].toUpperCase();
+        if (value.equals("FINE")) {
+          log.setLevel(Log.FINE);
+        }
+        else if (value.equals("FINER")) {
+          log.setLevel(Log.FINER);
+        }
+        else if (value.equals("FINEST")) {
+          log.setLevel(Log.FINEST);
+        }
+        else {
+          log.severe("Invalid logging value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else {
+        log.severe("Unknown argument: {0}", argv[i]);
+        log.severe("{0}", argumentStructure);
+        System.exit(1);
+      }
+    }
+    if (documentID == null && clusterID == null && textFile == null) {
+      log.severe("One of --document, --cluster, or --text is required");
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+
+    final LinkFile links;
+    try {
+      links = LinkFile.open(input);
+    }
+    catch (IOException ioe) {
+      log.severe("Could not read link file: {0}", ioe.getMessage());
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+      return;
+    }
+    try {
+      if (textFile != null) {
+        final Writer writer = textFile.openWriter();
+        try {
+          links.writeAnnotations(writer);
+        }
+        finally {
+          writer.close();
+        }
+      }
+
+      final Writer out = new BufferedWriter(
+          new OutputStreamWriter(System.out, "UTF-8"));
+      if (documentID != null) {
+        final int document = links.findDocument(documentID);
+        if (document < 0) {
+          log.severe("Unknown document: {0}", documentID);
+          System.exit(1);
+        }
+        printDocument(links, document, diffs, out);
+      }
+      if (clusterID != null) {
+        final int[] clusters = links.findClusters(clusterID);
+        if (clusters.length == 0) {
+          log.severe("Unknown cluster: {0}", clusterID);
+          System.exit(1);
+        }
+        for (final int cluster : clusters) {
+          printCluster(links, cluster, diffs, out);
+        }
+      }
+      out.flush();
+    }
+    finally {
+      links.close();
+    }
+  }
+
+  /**
+   * Prints the duplicate spans of a <var>document</var>, in order, then the
+   * spans of the document that other documents copied.
+   */
+  private static void printDocument(final LinkFile links, final int document,
+                                    final boolean diffs,
+                                    final Writer out) throws IOException {
+    final String documentID = links.getDocumentID(document);
+    for (int link = links.getFirstLink(document);
+         link < links.getFirstLink(document + 1); link++) {
+      printLink(links, link, diffs, out);
+    }
+    for (int i = 0; i < links.getNumSourceClusters(document); i++) {
+      final int cluster = links.getSourceCluster(document, i);
+      out.write(documentID + " " + links.getClusterID(cluster) + " " +
+          links.getSourceStart(cluster) + " " + links.getSourceEnd(cluster) +
+          " * " + links.getNumMembers(cluster) + "\n");
+    }
+  }
+
+  /**
+   * Prints the source span of a <var>cluster</var>, then its duplicate spans.
+   */
+  private static void printCluster(final LinkFile links, final int cluster,
+                                   final boolean diffs,
+                                   final Writer out) throws IOException {
+    out.write(links.getDocumentID(links.getSourceDocument(cluster)) + " " +
+        links.getClusterID(cluster) + " " + links.getSourceStart(cluster) +
+        " " + links.getSourceEnd(cluster) + " *\n");
+    for (int i = 0; i < links.getNumMembers(cluster); i++) {
+      printLink(links, links.getMember(cluster, i), diffs, out);
+    }
+  }
+
+  /**
+   * Prints a duplicate span with its source, and optionally its differences.
+   */
+  private static void printLink(final LinkFile links, final int link,
+                                final boolean diffs,
+                                final Writer out) throws IOException {
+    final DecimalFormat OVERLAP_FORMAT = new DecimalFormat("0.00");
+    final int cluster = links.getCluster(link);
+    out.write(links.getDocumentID(links.getDocument(link)) + " " +
+        links.getClusterID(cluster) + " " + links.getStart(link) + " " +
+        links.getEnd(link) + " " +
+        OVERLAP_FORMAT.format(links.getOverlap(link)) + " " +
+        links.getDocumentID(links.getSourceDocument(cluster)) + ":" +
+        links.getSourceStart(cluster) + "-" + links.getSourceEnd(cluster) +
+        "\n");
+    if (diffs) {
+      for (int i = 0; i < links.getNumDiffs(link); i++) {
+        final int[] diff = links.getDiff(link, i);
+        out.write("    diff " +
+            (diff[0] < 0 ? "-" : diff[0] + "-" + diff[1]) + " " +
+            (diff[2] < 0 ? "-" : diff[2] + "-" + diff[3]) + "\n");
+      }
+    }
+  }
+
+}
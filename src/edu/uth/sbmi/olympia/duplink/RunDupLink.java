@@ -21,6 +21,9 @@ import org.jdom2.Element;
 public class RunDupLink {
   private static final Log log = new Log(RunDupLink.class);
   public static boolean DEFAULT_TOKENIZED = false;
+  public static long DEFAULT_CHECKPOINT_INTERVAL = 300;
+  /** Exit status of a run stopped by <code>--timeLimit</code>. */
+  public static final int EXIT_INCOMPLETE = 3;
 
   public static void main(String[] argv) throws Exception {
     argv = Config.init("olympia.properties", argv);
@@ -42,6 +45,29 @@ public class RunDupLink {
         "    --minScore:  [optional]  minimum score (default: " + DupLink.DEFAULT_MIN_SCORE + ") to trigger a duplicate span, must be >0\n" +
         "    --tokenized: [optional]  whether the text is already space-tokenized (default: " + DEFAULT_TOKENIZED + "), if not " +
                                      "the default Olympia tokenizer will be used instead. Value must be either 'true' or 'false'.\n" +
+        "    --anchor:    [optional]  minimum length in tokens of the exact repeats that anchor alignments (default: none), " +
+                                     "must be >0.  If set, only the windows around exact repeats are aligned, which is faster " +
+                                     "but misses duplicates without such a repeat.\n" +
+        "    --anchorSources: [optional] number of latest earlier documents, besides the earliest, whose exact repeats " +
+                                     "with a document are used by --anchor (default: " + DupLink.DEFAULT_ANCHOR_SOURCES + "), must be >=0, " +
+                                     "or 0 for all.  Fewer is faster on text copied into many documents, but can miss its duplicates.\n" +
+        "    --boilerplate: [optional] boilerplate index (see duplink-boilerplate) of template text to mask before " +
+                                     "alignment.  Masked text is never part of a duplicate.\n" +
+        "    --sentences: [optional]  sentence splitter, options: [newline, aggressive] (default: none).  If set, the " +
+                                     "sentences of the documents are aligned first and only the tokens around blocks of " +
+                                     "equal sentences are aligned, which is faster but misses duplicates without a whole " +
+                                     "sentence in common.  Cannot be combined with --anchor.\n" +
+        "    --memory:    [optional]  memory budget in megabytes for full documents (default: unlimited).  If set, " +
+                                     "only the token IDs and offsets of each document are kept for alignment and " +
+                                     "documents are re-read from disk when the details output needs them.\n" +
+        "    --binary:    [optional]  compact binary link file with document and cluster indexes (see duplink-query), " +
+                                     "written in addition to the output annotations\n" +
+        "    --checkpoint:         [optional]  checkpoint file of the completed documents and their links\n" +
+        "    --checkpointInterval: [optional]  seconds between checkpoints (default: " + DEFAULT_CHECKPOINT_INTERVAL + "), must be >0\n" +
+        "    --resume:    [optional]  whether to continue from the --checkpoint file if it exists (default: false), " +
+                                     "replacing the output of the interrupted run. Value must be either 'true' or 'false'.\n" +
+        "    --timeLimit: [optional]  seconds after which to write the --checkpoint and stop (exit status " + EXIT_INCOMPLETE + ") " +
+                                     "without writing the output\n" +
         "    --logging:   [optional]  logging level, options: [FINE, FINER, FINEST]\n" +
         "\n" +
         "Example: duplink documents/ duplink_out.txt --gap -1 --penalty -2 --minScore 25\n" +
@@ -81,30 +107,21 @@ public class RunDupLink {
       System.exit(1);
     }
 
-    final Place output = Place.fromFile(argv[1]);
-    if (output.exists()) {
-      log.severe("Output file already exists: {0}", output);
-      log.severe("{0}", argumentStructure);
-      System.exit(1);
-    }
-    final Writer writer;
-    try {
-      writer = output.openWriter();
-      writer.write("document_id duplicate_id char_start char_end overlap_per\n");
-      writer.flush();
-    }
-    catch (IOException ioe) {
-      log.severe("Could not write to file: {0}", output);
-      log.severe("{0}", argumentStructure);
-      System.exit(1);
-      return;
-    }
-
     double gap = DupLink.DEFAULT_GAP;
     double penalty = DupLink.DEFAULT_PENALTY;
     double minScore = DupLink.DEFAULT_MIN_SCORE;
     boolean tokenized = DEFAULT_TOKENIZED;
     Place detailFile = null;
+    Place binaryFile = null;
+    int anchorLength = 0;
+    int anchorSources = DupLink.DEFAULT_ANCHOR_SOURCES;
+    BoilerplateIndex boilerplate = null;
+    String sentenceSplitter = null;
+    Long memory = null;
+    Place checkpointFile = null;
+    long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    boolean resume = false;
+    Long timeLimit = null;
     for (int i = 2; i < argv.length; i += 2) {
       if (argv[i].equals("--gap")) {
         try {
@@ -182,64 +199,398 @@ public class RunDupLink {
           System.exit(1);
         }
       }
+      else if (argv[i].equals("--anchor")) {
+        try {
+          anchorLength = Integer.valueOf(argv[i+1]);
+        }
+        catch (NumberFormatException nfe) {
+          log.severe("Invalid anchor value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        if (anchorLength <= 0) {
+          log.severe("Invalid anchor value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--anchorSources")) {
+        try {
+          anchorSources = Integer.valueOf(argv[i+1]);
+        }
+        catch (NumberFormatException nfe) {
+          log.severe("Invalid anchorSources value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        if (anchorSources < 0) {
+          log.severe("Invalid anchorSources value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--boilerplate")) {
+        try {
+          boilerplate = BoilerplateIndex.read(Place.fromFile(argv[i+1]));
+        }
+        catch (IOException ioe) {
+          log.severe("Could not read boilerplate index: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--sentences")) {
+        final String value = argv[i+1].toLowerCase();
+        if (value.equals("newline")) {
+          sentenceSplitter =
+              "edu.uth.sbmi.olympia.text.annotators.NewlineSentenceSegmenter";
+        }
+        else if (value.equals("aggressive")) {
+          sentenceSplitter =
+              "edu.uth.sbmi.olympia.text.annotators.AggressiveSentenceSplitter";
+        }
+        else {
+          log.severe("Invalid sentences value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--memory")) {
+        try {
+          memory = Long.valueOf(argv[i+1]);
+        }
+        catch (NumberFormatException nfe) {
+          log.severe("Invalid memory value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        if (memory <= 0) {
+          log.severe("Invalid memory value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--checkpoint")) {
+        checkpointFile = Place.fromFile(argv[i+1]);
+      }
+      else if (argv[i].equals("--checkpointInterval")) {
+        try {
+          checkpointInterval = Long.valueOf(argv[i+1]);
+        }
+        catch (NumberFormatException nfe) {
+          log.severe("Invalid checkpointInterval value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        if (checkpointInterval <= 0) {
+          log.severe("Invalid checkpointInterval value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--resume")) {
+        final String value = argv[i+1].toLowerCase();
+        if (value.equals("true")) {
+          resume = true;
+        }
+        else if (value.equals("false")) {
+          resume = false;
+        }
+        else {
+          log.severe("Invalid resume value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--timeLimit")) {
+        try {
+          timeLimit = Long.valueOf(argv[i+1]);
+        }
+        catch (NumberFormatException nfe) {
+          log.severe("Invalid timeLimit value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        if (timeLimit < 0) {
+          log.severe("Invalid timeLimit value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
       else if (argv[i].equals("--details")) {
         detailFile = Place.fromFile(argv[i+1]);
       }
+      else if (argv[i].equals("--binary")) {
+        binaryFile = Place.fromFile(argv[i+1]);
+      }
       else {
         log.severe("Unknown argument: {0}", argv[i]);
         log.severe("{0}", argumentStructure);
         System.exit(1);
       }
     }
+    if (checkpointFile == null && (resume || timeLimit != null)) {
+      log.severe("--resume and --timeLimit require --checkpoint");
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+    if (sentenceSplitter != null && anchorLength > 0) {
+      log.severe("--sentences and --anchor cannot be combined");
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
     if (tokenized) {
       Config.get("edu.uth.sbmi.olympia.text.annotator.TOKEN")
             .set("edu.uth.sbmi.olympia.text.annotators.WhitespaceTokenizer");
     }
+    if (sentenceSplitter != null) {
+      Config.get("edu.uth.sbmi.olympia.text.annotator.SENTENCE")
+            .set(sentenceSplitter);
+    }
 
-    final List<Document> documents = new ArrayList<>();
-    for (final Place file : inputFiles) {
-      log.fine("File: {0}", file);
-      if (file.isDirectory()) {
-        log.severe("Is a directory, not a text file: {0}", file);
-        log.severe("{0}", argumentStructure);
-        System.exit(1);
+    // A resumed run replaces the output of the interrupted one
+    final Place output = Place.fromFile(argv[1]);
+    if (output.exists() && resume == false) {
+      log.severe("Output file already exists: {0}", output);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+    if (binaryFile != null && binaryFile.exists() && resume == false) {
+      log.severe("Binary file already exists: {0}", binaryFile);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+
+    final DupLink dupLink = new DupLink(gap, penalty, minScore);
+    dupLink.setAnchorLength(anchorLength);
+    dupLink.setAnchorSources(anchorSources);
+    dupLink.setBoilerplate(boilerplate);
+    dupLink.setSentenceSplitter(sentenceSplitter);
+    final Corpus corpus;
+    final DocumentCache cache;
+    final List<Document> documents;
+    if (memory != null) {
+      // Keep only the token arena for every document, and as many full
+      // documents as fit in the budget
+      corpus = new Corpus(false);
+      cache = new DocumentCache(corpus, memory * 1024 * 1024);
+      documents = null;
+      for (final Place file : inputFiles) {
+        final Document document = readDocument(file, argumentStructure);
+        if (sentenceSplitter != null) {
+          annotateSentences(document);
+        }
+        cache.put(corpus.add(document), document);
+      }
+    }
+    else {
+      documents = readDocuments(inputFiles, argumentStructure);
+      if (sentenceSplitter != null) {
+        for (final Document document : documents) {
+          annotateSentences(document);
+        }
+      }
+      corpus = new Corpus(documents);
+      cache = null;
+    }
+
+    Checkpoint checkpoint = null;
+    if (checkpointFile != null) {
+      checkpoint = new Checkpoint(checkpointFile, 1000 * checkpointInterval,
+          timeLimit == null ? null : 1000 * timeLimit);
+      if (resume && checkpointFile.exists()) {
+        try {
+          checkpoint.read(dupLink, corpus);
+        }
+        catch (IOException ioe) {
+          log.severe("Could not resume from checkpoint: {0}", ioe.getMessage());
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (resume) {
+        log.info("No checkpoint to resume from: {0}", checkpointFile);
       }
-      final String filename = file.getName().replace(".txt", "");
-      if (Strings.isAllDigits(filename) == false) {
-        log.severe("Improper file name: {0}", file);
+    }
+
+    // Opened only once the checkpoint is accepted, so a rejected resume
+    // leaves no output behind
+    final Writer writer;
+    try {
+      writer = output.openWriter();
+      writer.write("document_id duplicate_id char_start char_end overlap_per\n");
+      writer.flush();
+    }
+    catch (IOException ioe) {
+      log.severe("Could not write to file: {0}", output);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+      return;
+    }
+
+    final List<LinkRecord> records;
+    try {
+      records = dupLink.findLinks(corpus, checkpoint);
+    }
+    catch (IOException ioe) {
+      log.severe("Could not write checkpoint: {0}", checkpointFile);
+      log.severe("{0}", argumentStructure);
+      IOUtil.close(writer);
+      output.delete();
+      System.exit(1);
+      return;
+    }
+    if (checkpoint != null && checkpoint.isComplete(corpus) == false) {
+      log.info("Stopped early, continue with: --resume true");
+      IOUtil.close(writer);
+      output.delete();
+      System.exit(EXIT_INCOMPLETE);
+    }
+
+    if (binaryFile != null) {
+      try {
+        LinkFile.write(records, corpus, binaryFile);
+      }
+      catch (IOException ioe) {
+        log.severe("Could not write to file: {0}", binaryFile);
         log.severe("{0}", argumentStructure);
+        IOUtil.close(writer);
+        output.delete();
         System.exit(1);
       }
+    }
+
+    if (memory != null) {
       try {
-        final Long timestamp = Long.valueOf(filename);
+        writeAnnotations(records, corpus, writer);
+        writer.close();
       }
-      catch (NumberFormatException nfe) {
-        log.severe("Improper file name: {0}", file);
+      catch (IOException ioe) {
+        log.severe("Could not write to file: {0}", output);
         log.severe("{0}", argumentStructure);
         System.exit(1);
       }
-      
-      final String text;
+
+      if (detailFile != null) {
+        try {
+          writeDetails(records, corpus, cache, detailFile);
+        }
+        catch (IOException ioe) {
+          log.severe("Could not write to file: {0}", detailFile);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      log.fine("Rebuilt {0} documents from disk", cache.getNumRebuilt());
+      return;
+    }
+
+    // Link annotations are only created for the output
+    for (final LinkRecord record : records) {
+      record.toLink(documents).attach();
+    }
+
+    try {
+      writeAnnotations(documents, writer);
+      writer.close();
+    }
+    catch (IOException ioe) {
+      log.severe("Could not write to file: {0}", output);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+
+    if (detailFile != null) {
       try {
-        text = file.readString();
+        writeDetails(documents, detailFile);
       }
       catch (IOException ioe) {
-        log.severe("Could not read file: {0}", file);
+        log.severe("Could not write to file: {0}", detailFile);
         log.severe("{0}", argumentStructure);
         System.exit(1);
-        continue;
       }
+    }
+
+  }
 
-      final Document document = new Document(text);
-      document.setDocumentID(filename);
-      document.setFile(file);
-      document.annotate(Token.TYPE);
-      documents.add(document);
+  /**
+   * Annotates the {@link Sentence}s of the <var>document</var>.  A document
+   * without tokens has no sentences and is only marked as annotated, since
+   * the sentence splitters fail on it.
+   */
+  static void annotateSentences(final Document document) {
+    if (document.getTokenLength() == 0) {
+      document.addAnnotatedType(Sentence.TYPE);
     }
+    else {
+      document.annotate(Sentence.TYPE);
+    }
+  }
 
-    final DupLink dupLink = new DupLink(gap, penalty, minScore);
-    dupLink.findDuplicates(documents);
+  /**
+   * Reads and tokenizes the {@link Document}s in the given numerically-named
+   * <var>inputFiles</var>.  Exits on any improper file.
+   */
+  static List<Document> readDocuments(final List<? extends Place> inputFiles,
+                                      final String argumentStructure) {
+    final List<Document> documents = new ArrayList<>();
+    for (final Place file : inputFiles) {
+      documents.add(readDocument(file, argumentStructure));
+    }
+    return documents;
+  }
 
+  /**
+   * Reads and tokenizes the {@link Document} in the given numerically-named
+   * <var>file</var>.  Exits if the file is improper.
+   */
+  static Document readDocument(final Place file,
+                               final String argumentStructure) {
+    log.fine("File: {0}", file);
+    if (file.isDirectory()) {
+      log.severe("Is a directory, not a text file: {0}", file);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+    final String filename = file.getName().replace(".txt", "");
+    if (Strings.isAllDigits(filename) == false) {
+      log.severe("Improper file name: {0}", file);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+    try {
+      final Long timestamp = Long.valueOf(filename);
+    }
+    catch (NumberFormatException nfe) {
+      log.severe("Improper file name: {0}", file);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+    
+    final String text;
+    try {
+      text = file.readString();
+    }
+    catch (IOException ioe) {
+      log.severe("Could not read file: {0}", file);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+      return null;
+    }
+
+    final Document document = new Document(text);
+    document.setDocumentID(filename);
+    document.setFile(file);
+    document.annotate(Token.TYPE);
+    return document;
+  }
+
+  /**
+   * Writes the duplicate spans of the linked {@link Document}s in the
+   * space-separated annotation format (without the header line).
+   */
+  static void writeAnnotations(final List<Document> documents,
+                               final Writer writer) throws IOException {
     final Map<String,List<Link>> duplicateGroups = new LinkedHashMap<>();
     final List<Link> allLinks = new ArrayList<>();
     for (final Document document : documents) {
@@ -279,12 +630,12 @@ public class RunDupLink {
             final Text two = diff.getSecond();
             log.finest("    {0}: {1} tokens", srcID,
                 one == null ? "null" : one.getTokenLength());
-            final String oneStr = one.asRawString();
+            final String oneStr = one == null ? "" : one.asRawString();
             log.finest("        {0}", Strings.join(
                 Strings.wrapLines(oneStr, 120, true), "\n        ").trim());
             log.finest("    {0}: {1} tokens", destID,
                 two == null ? "null" : two.getTokenLength());
-            final String twoStr = two.asRawString();
+            final String twoStr = two == null ? "" : two.asRawString();
             log.finest("        {0}", Strings.join(
                 Strings.wrapLines(twoStr, 120, true), "\n        ").trim());
             diffnum++;
@@ -296,108 +647,196 @@ public class RunDupLink {
 
     final DecimalFormat OVERLAP_FORMAT = new DecimalFormat("0.00");
     final Map<Link,String> clusterIDs = new HashMap<>();
-    try {
-      final Set<String> md5Sanity = new HashSet<>();
-      for (final Map.Entry<String,List<Link>> e : duplicateGroups.entrySet()) {
-        final String srcKey = e.getKey();
-        final List<Link> links = e.getValue();
+    final Set<String> md5Sanity = new HashSet<>();
+    for (final Map.Entry<String,List<Link>> e : duplicateGroups.entrySet()) {
+      final String srcKey = e.getKey();
+      final List<Link> links = e.getValue();
 
-        final String clusterID = IOUtil.md5sum(srcKey).substring(0, 8);
-        assert md5Sanity.add(clusterID);
-        final Text src = links.get(0).getSource();
-        writer.write(src.getDocumentID() + " " + clusterID + " " +
-            src.getStartCharOffset() + " " + src.getEndCharOffset() + " *\n");
+      final String clusterID = IOUtil.md5sum(srcKey).substring(0, 8);
+      assert md5Sanity.add(clusterID);
+      final Text src = links.get(0).getSource();
+      writer.write(src.getDocumentID() + " " + clusterID + " " +
+          src.getStartCharOffset() + " " + src.getEndCharOffset() + " *\n");
 
-        for (final Link link : links) {
-          final String prev = clusterIDs.put(link, clusterID);
-          assert prev == null;
+      for (final Link link : links) {
+        final String prev = clusterIDs.put(link, clusterID);
+        assert prev == null;
 
-          final Text dest = link.getDestination();
+        final Text dest = link.getDestination();
 
-          final int srcLen = src.getTokenLength();
-          int tokenOverlap = srcLen;
-          for (final Pair<Text,Text> diff : link.getDiffs()) {
-            final Text srcDiff = diff.getFirst();
-            assert src.getDocument() == srcDiff.getDocument();
-            tokenOverlap -= srcDiff.getTokenLength();
+        final int srcLen = src.getTokenLength();
+        int tokenOverlap = srcLen;
+        for (final Pair<Text,Text> diff : link.getDiffs()) {
+          final Text srcDiff = diff.getFirst();
+          if (srcDiff == null) {
+            continue;
           }
-          final double tokenOverlapPer =
-              100.0 * tokenOverlap / src.getTokenLength();
-
-          writer.write(dest.getDocumentID() + " " + clusterID + " " +
-              dest.getStartCharOffset() + " " + dest.getEndCharOffset() + " " +
-              OVERLAP_FORMAT.format(tokenOverlapPer) + "\n");
+          assert src.getDocument() == srcDiff.getDocument();
+          tokenOverlap -= srcDiff.getTokenLength();
         }
+        final double tokenOverlapPer =
+            100.0 * tokenOverlap / src.getTokenLength();
+
+        writer.write(dest.getDocumentID() + " " + clusterID + " " +
+            dest.getStartCharOffset() + " " + dest.getEndCharOffset() + " " +
+            OVERLAP_FORMAT.format(tokenOverlapPer) + "\n");
       }
-      writer.close();
     }
-    catch (IOException ioe) {
-      log.severe("Could not write to file: {0}", output);
-      log.severe("{0}", argumentStructure);
-      System.exit(1);
+  }
+
+  /**
+   * Writes the duplicate spans of the given {@link LinkRecord}s in the
+   * space-separated annotation format (without the header line), using only
+   * the token offsets of the {@link Corpus}.  The output is the same as
+   * {@link #writeAnnotations(List,Writer)} on the linked documents.
+   */
+  static void writeAnnotations(final List<LinkRecord> records,
+                               final Corpus corpus,
+                               final Writer writer) throws IOException {
+    final TokenArena arena = corpus.getArena();
+    final Map<String,List<LinkRecord>> duplicateGroups = new LinkedHashMap<>();
+    for (final LinkRecord record : records) {
+      final int src = record.getSourceDocument();
+      final String srcKey = corpus.getDocumentID(src) + ":" +
+          arena.getStartCharOffset(src, record.getSourceStart()) + "-" +
+          arena.getEndCharOffset(src, record.getSourceEnd() - 1);
+      if (duplicateGroups.containsKey(srcKey) == false) {
+        duplicateGroups.put(srcKey, new ArrayList<LinkRecord>());
+      }
+      duplicateGroups.get(srcKey).add(record);
     }
 
-    if (detailFile != null) {
-      final Element root = new Element("Documents");
-      root.addContent(new org.jdom2.Text("\n"));
-      for (final Document document : documents) {
-        final Element documentElem = new Element("Document");
-        documentElem.setAttribute("document_id", document.getDocumentID());
-        final String rawString = document.asRawString();
-
-        final List<Text> spans = new ArrayList<>();
-        spans.addAll(document.getNonIntersecting(Link.class));
-        spans.addAll(document.getSub(Link.class));
-        Collections.sort(spans, TextComparators.startToken());
-
-        for (int i = 0; i < spans.size(); i++) {
-          final Text span = spans.get(i);
-          if (i > 0) {
-            final Text prevSpan = spans.get(i-1);
-            documentElem.addContent(new org.jdom2.Text(
-                rawString.substring(prevSpan.getEndCharOffset(),
-                                    span.getStartCharOffset())));
-          }
+    final DecimalFormat OVERLAP_FORMAT = new DecimalFormat("0.00");
+    final Set<String> md5Sanity = new HashSet<>();
+    for (final Map.Entry<String,List<LinkRecord>> e :
+         duplicateGroups.entrySet()) {
+      final String srcKey = e.getKey();
+      final List<LinkRecord> group = e.getValue();
 
-          int startChar = span.getStartCharOffset();
-          int endChar = span.getEndCharOffset();
-          if (span instanceof Link) {
-            final Link link = (Link) span;
-            final Element linkElem = new Element("Duplicate");
-            linkElem.setAttribute("source-document_id",
-                link.getSource().getDocumentID());
-            linkElem.setAttribute("source-char_start",
-                Integer.toString(link.getSource().getStartCharOffset()));
-            linkElem.setAttribute("source-char_end",
-                Integer.toString(link.getSource().getEndCharOffset()));
-            linkElem.setText(rawString.substring(startChar, endChar));
-            documentElem.addContent(linkElem);
-          }
-          else {
-            if (span.hasPrevToken() == false) {
-              startChar = 0;
-            }
-            if (span.hasNextToken() == false) {
-              endChar = rawString.length();
-            }
-            documentElem.addContent(new org.jdom2.Text(
-                rawString.substring(startChar, endChar)));
+      final String clusterID = IOUtil.md5sum(srcKey).substring(0, 8);
+      assert md5Sanity.add(clusterID);
+      final LinkRecord first = group.get(0);
+      final int src = first.getSourceDocument();
+      writer.write(corpus.getDocumentID(src) + " " + clusterID + " " +
+          arena.getStartCharOffset(src, first.getSourceStart()) + " " +
+          arena.getEndCharOffset(src, first.getSourceEnd() - 1) + " *\n");
+
+      for (final LinkRecord record : group) {
+        final int dest = record.getDestDocument();
+        final int srcLen = first.getSourceEnd() - first.getSourceStart();
+        int tokenOverlap = srcLen;
+        for (int i = 0; i < record.getNumDiffs(); i++) {
+          final int[] diff = record.getDiff(i);
+          if (diff[0] >= 0) {
+            tokenOverlap -= diff[1] - diff[0];
           }
         }
+        final double tokenOverlapPer = 100.0 * tokenOverlap / srcLen;
 
-        root.addContent(documentElem);
-        root.addContent(new org.jdom2.Text("\n"));
+        writer.write(corpus.getDocumentID(dest) + " " + clusterID + " " +
+            arena.getStartCharOffset(dest, record.getDestStart()) + " " +
+            arena.getEndCharOffset(dest, record.getDestEnd() - 1) + " " +
+            OVERLAP_FORMAT.format(tokenOverlapPer) + "\n");
       }
-      try {
-        XMLUtil.writeFile(root, detailFile, XMLUtil.RAW_FORMAT);
+    }
+  }
+
+  /**
+   * Writes the linked {@link Document}s as an XML details file in which the
+   * duplicate spans are marked with their source.
+   */
+  static void writeDetails(final List<Document> documents,
+                           final Place detailFile) throws IOException {
+    final Element root = new Element("Documents");
+    root.addContent(new org.jdom2.Text("\n"));
+    for (final Document document : documents) {
+      root.addContent(detailElement(document));
+      root.addContent(new org.jdom2.Text("\n"));
+    }
+    XMLUtil.writeFile(root, detailFile, XMLUtil.RAW_FORMAT);
+  }
+
+  /**
+   * Writes the XML details file for the given {@link LinkRecord}s, which must
+   * be ordered by destination document.  Each document is taken from the
+   * {@link DocumentCache} (and rebuilt from disk if it has been evicted), and
+   * its {@link Link}s are attached only while its element is created.
+   */
+  static void writeDetails(final List<LinkRecord> records,
+                           final Corpus corpus,
+                           final DocumentCache cache,
+                           final Place detailFile) throws IOException {
+    final Element root = new Element("Documents");
+    root.addContent(new org.jdom2.Text("\n"));
+    int r = 0;
+    for (int i = 0; i < corpus.size(); i++) {
+      final Document document = cache.get(i);
+      final List<Link> links = new ArrayList<>();
+      while (r < records.size() && records.get(r).getDestDocument() == i) {
+        final LinkRecord record = records.get(r++);
+        final Link link = record.toLink(document,
+            cache.get(record.getSourceDocument()));
+        link.attach();
+        links.add(link);
       }
-      catch (IOException ioe) {
-        log.severe("Could not write to file: {0}", output);
-        log.severe("{0}", argumentStructure);
-        System.exit(1);
+      root.addContent(detailElement(document));
+      root.addContent(new org.jdom2.Text("\n"));
+      for (final Link link : links) {
+        link.detach();
       }
     }
+    assert r == records.size() : "records not ordered by destination";
+    XMLUtil.writeFile(root, detailFile, XMLUtil.RAW_FORMAT);
+  }
+
+  /**
+   * Returns the details XML element of a linked {@link Document}.
+   */
+  private static Element detailElement(final Document document) {
+    final Element documentElem = new Element("Document");
+    documentElem.setAttribute("document_id", document.getDocumentID());
+    final String rawString = document.asRawString();
 
+    final List<Text> spans = new ArrayList<>();
+    spans.addAll(document.getNonIntersecting(Link.class));
+    spans.addAll(document.getSub(Link.class));
+    Collections.sort(spans, TextComparators.startToken());
+
+    for (int i = 0; i < spans.size(); i++) {
+      final Text span = spans.get(i);
+      if (i > 0) {
+        final Text prevSpan = spans.get(i-1);
+        documentElem.addContent(new org.jdom2.Text(
+            rawString.substring(prevSpan.getEndCharOffset(),
+                                span.getStartCharOffset())));
+      }
+
+      int startChar = span.getStartCharOffset();
+      int endChar = span.getEndCharOffset();
+      if (span instanceof Link) {
+        final Link link = (Link) span;
+        final Element linkElem = new Element("Duplicate");
+        linkElem.setAttribute("source-document_id",
+            link.getSource().getDocumentID());
+        linkElem.setAttribute("source-char_start",
+            Integer.toString(link.getSource().getStartCharOffset()));
+        linkElem.setAttribute("source-char_end",
+            Integer.toString(link.getSource().getEndCharOffset()));
+        linkElem.setText(rawString.substring(startChar, endChar));
+        documentElem.addContent(linkElem);
+      }
+      else {
+        if (span.hasPrevToken() == false) {
+          startChar = 0;
+        }
+        if (span.hasNextToken() == false) {
+          endChar = rawString.length();
+        }
+        documentElem.addContent(new org.jdom2.Text(
+            rawString.substring(startChar, endChar)));
+      }
+    }
+    return documentElem;
   }
 
 }
@@ -0,0 +1,121 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.util.*;
+
+import java.util.*;
+
+/**
+ * Admissible upper bound on the best local alignment score between a source
+ * run of tokens and a target segment.  Segments whose bound is below the
+ * minimum score can be skipped without losing any duplicate.
+ * <p>
+ * Every aligned pair of equal tokens scores 1.0, so no alignment can score
+ * more than the size of the multiset intersection of the two sequences.
+ * Every other column scores the (non-positive) penalty or gap, so each token
+ * of the aligned part of the target that does not occur in the source costs
+ * at least the larger of the two, and the alignment cannot score more than
+ * the best sum over a window of the target where such tokens count as that
+ * cost and the others as 1.0 (and likewise for the source).  The bound is
+ * the smallest of these three.
+ * <p>
+ * The token counts are kept in arrays indexed by token ID that are allocated
+ * once, so computing a bound allocates nothing.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class ScoreBound {
+  private static final Log log = new Log(ScoreBound.class);
+
+  private final double mismatch;
+  private final int[] sourceCounts;
+  private final int[] targetCounts;
+  private TokenArena sourceArena = null;
+  private int sourceDocument = -1;
+  private int sourceStart = 0;
+  private int sourceEnd = 0;
+  private int distinctOverlap = 0;
+
+  /**
+   * Creates a new <code>ScoreBound</code> for token IDs in
+   * <code>[0, vocabularySize)</code> and the given (non-positive)
+   * <var>gap</var> and <var>penalty</var> scores.
+   */
+  public ScoreBound(final int vocabularySize, final double gap,
+                    final double penalty) {
+    assert gap <= 0.0 && penalty <= 0.0;
+    mismatch = Math.max(gap, penalty);
+    sourceCounts = new int[vocabularySize];
+    targetCounts = new int[vocabularySize];
+  }
+
+  /**
+   * Sets the tokens <code>[start, end)</code> of the source
+   * <var>document</var> of the <var>arena</var> that subsequent bounds are
+   * computed against.
+   */
+  public void setSource(final TokenArena arena, final int document,
+                        final int start, final int end) {
+    if (arena == sourceArena && document == sourceDocument &&
+        start == sourceStart && end == sourceEnd) {
+      return;
+    }
+    if (sourceArena != null) {
+      for (int i = sourceStart; i < sourceEnd; i++) {
+        sourceCounts[sourceArena.getTokenID(sourceDocument, i)] = 0;
+      }
+    }
+    sourceArena = arena;
+    sourceDocument = document;
+    sourceStart = start;
+    sourceEnd = end;
+    for (int i = start; i < end; i++) {
+      sourceCounts[arena.getTokenID(document, i)]++;
+    }
+  }
+
+  /**
+   * Returns the upper bound on the local alignment score between the source
+   * and the tokens <code>[start, end)</code> of the target
+   * <var>document</var> of the <var>arena</var>.
+   */
+  public double upperBound(final TokenArena arena, final int document,
+                           final int start, final int end) {
+    int intersection = 0;
+    distinctOverlap = 0;
+    double targetWindow = 0.0;
+    double window = 0.0;
+    for (int i = start; i < end; i++) {
+      final int id = arena.getTokenID(document, i);
+      final int count = targetCounts[id]++;
+      if (count < sourceCounts[id]) {
+        intersection++;
+        if (count == 0) {
+          distinctOverlap++;
+        }
+      }
+      // Best sum of a window of the target ending at this token
+      window = Math.max(0.0, window + (sourceCounts[id] > 0 ? 1.0 : mismatch));
+      targetWindow = Math.max(targetWindow, window);
+    }
+    double sourceWindow = 0.0;
+    window = 0.0;
+    for (int i = sourceStart; i < sourceEnd; i++) {
+      final int id = sourceArena.getTokenID(sourceDocument, i);
+      window = Math.max(0.0, window + (targetCounts[id] > 0 ? 1.0 : mismatch));
+      sourceWindow = Math.max(sourceWindow, window);
+    }
+    for (int i = start; i < end; i++) {
+      targetCounts[arena.getTokenID(document, i)] = 0;
+    }
+    return Math.min(intersection, Math.min(targetWindow, sourceWindow));
+  }
+
+  /**
+   * Returns the number of distinct tokens shared by the source and the target
+   * of the last {@link #upperBound} call (the former set-overlap check).
+   */
+  public int getDistinctOverlap() {
+    return distinctOverlap;
+  }
+
+}
@@ -0,0 +1,173 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.util.*;
+
+import java.util.*;
+
+/**
+ * Coarse-to-fine local alignment of token ID sequences that are split into
+ * sentences.  The sequences of sentence IDs (equal sentences have equal IDs)
+ * are aligned first, which is cheap since there are far fewer sentences than
+ * tokens.  Each block of matching sentences, widened by a margin of
+ * sentences on both sides, is then aligned by a {@link TokenAligner} to find
+ * the exact boundaries and differences.  A duplicate is only found if it
+ * contains at least one whole sentence of both sequences.
+ * <p>
+ * Blocks are found with a sentence match score of 1.0 and a mismatch and
+ * gap score of -1.0, independently of the token scores.  Windows that
+ * overlap in both sequences are merged, so an edited sentence between two
+ * matching blocks is aligned with both.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class SentenceAligner {
+  private static final Log log = new Log(SentenceAligner.class);
+  private static final double SENTENCE_GAP = -1.0;
+  private static final double SENTENCE_PENALTY = -1.0;
+
+  private final TokenAligner sentenceAligner =
+      new TokenAligner(SENTENCE_GAP, SENTENCE_PENALTY);
+  private final TokenAligner tokenAligner;
+  private final int margin;
+  private int[] sentences1 = new int[0];
+  private int[] sentences2 = new int[0];
+  private int[] window1 = new int[0];
+  private int[] window2 = new int[0];
+  private long numCells = 0;
+
+  /**
+   * Creates a new <code>SentenceAligner</code> with the given token
+   * <var>gap</var> and <var>penalty</var> scores, aligning
+   * <var>margin</var> sentences around each block of matching sentences.
+   */
+  public SentenceAligner(final double gap, final double penalty,
+                         final int margin) {
+    assert margin >= 0;
+    this.tokenAligner = new TokenAligner(gap, penalty);
+    this.margin = margin;
+  }
+
+  /**
+   * Returns the number of sentence margins around each block.
+   */
+  public int getMargin() {
+    return margin;
+  }
+
+  /**
+   * Returns the number of dynamic programming cells, sentence and token,
+   * computed so far (not counting re-computations for multiple
+   * alignments).
+   */
+  public long getNumCells() {
+    return numCells;
+  }
+
+  /**
+   * Returns the non-overlapping local alignments between the first
+   * <var>length1</var> tokens of <var>seq1</var> and the first
+   * <var>length2</var> tokens of <var>seq2</var> that score at least
+   * <var>minScore</var>, with the same semantics as
+   * {@link TokenAligner#alignMulti}.  The <var>n</var>th sentence of a
+   * sequence has the ID <code>ids[n]</code> and covers the tokens
+   * <code>[bounds[n], bounds[n+1])</code>, for <var>numSentences</var>
+   * sentences.  The aligned tokens are overwritten in both arrays.
+   */
+  public List<TokenAlignment> alignMulti(final int[] seq1, final int length1,
+                                         final int[] bounds1,
+                                         final int[] ids1,
+                                         final int numSentences1,
+                                         final int[] seq2, final int length2,
+                                         final int[] bounds2,
+                                         final int[] ids2,
+                                         final int numSentences2,
+                                         final double minScore) {
+    assert bounds1[numSentences1] == length1;
+    assert bounds2[numSentences2] == length2;
+    if (sentences1.length < numSentences1) {
+      sentences1 = new int[numSentences1];
+    }
+    if (sentences2.length < numSentences2) {
+      sentences2 = new int[numSentences2];
+    }
+    if (TokenAligner.canAlign(numSentences1, numSentences2) == false) {
+      log.warning("Skipping alignment of {0} x {1} sentences, too many to " +
+          "align", numSentences1, numSentences2);
+      return Collections.emptyList();
+    }
+    System.arraycopy(ids1, 0, sentences1, 0, numSentences1);
+    System.arraycopy(ids2, 0, sentences2, 0, numSentences2);
+    numCells += (long) numSentences1 * numSentences2;
+    final List<TokenAlignment> blocks = sentenceAligner.alignMulti(
+        sentences1, numSentences1, sentences2, numSentences2, 1.0);
+
+    // Token windows {start1, end1, start2, end2} around the blocks
+    final List<int[]> windows = new ArrayList<>();
+    for (final TokenAlignment block : blocks) {
+      int[] window = {
+          bounds1[Math.max(0, block.start1 - margin)],
+          bounds1[Math.min(numSentences1, block.end1 + margin)],
+          bounds2[Math.max(0, block.start2 - margin)],
+          bounds2[Math.min(numSentences2, block.end2 + margin)]};
+      // A merged window can overlap windows it did not overlap before
+      boolean merged;
+      do {
+        merged = false;
+        for (final Iterator<int[]> it = windows.iterator(); it.hasNext(); ) {
+          final int[] other = it.next();
+          if (other[0] < window[1] && window[0] < other[1] &&
+              other[2] < window[3] && window[2] < other[3]) {
+            window = new int[] {Math.min(window[0], other[0]),
+                                Math.max(window[1], other[1]),
+                                Math.min(window[2], other[2]),
+                                Math.max(window[3], other[3])};
+            it.remove();
+            merged = true;
+          }
+        }
+      } while (merged);
+      windows.add(window);
+    }
+    Collections.sort(windows, new Comparator<int[]>() {
+      @Override
+      public int compare(final int[] w1, final int[] w2) {
+        final int c = Integer.compare(w1[2], w2[2]);
+        return c != 0 ? c : Integer.compare(w1[0], w2[0]);
+      }
+    });
+
+    final List<TokenAlignment> alignments = new ArrayList<>();
+    for (final int[] window : windows) {
+      final int windowLength1 = window[1] - window[0];
+      final int windowLength2 = window[3] - window[2];
+      if (TokenAligner.canAlign(windowLength1, windowLength2) == false) {
+        log.warning("Skipping alignment of a {0} x {1} token window, too " +
+            "many to align", windowLength1, windowLength2);
+        continue;
+      }
+      if (window1.length < windowLength1) {
+        window1 = new int[windowLength1];
+      }
+      if (window2.length < windowLength2) {
+        window2 = new int[windowLength2];
+      }
+      System.arraycopy(seq1, window[0], window1, 0, windowLength1);
+      System.arraycopy(seq2, window[2], window2, 0, windowLength2);
+      numCells += (long) windowLength1 * windowLength2;
+      for (final TokenAlignment alignment : tokenAligner.alignMulti(
+               window1, windowLength1, window2, windowLength2, minScore)) {
+        alignments.add(new TokenAlignment(
+            window[0] + alignment.start1, window[0] + alignment.end1,
+            window[2] + alignment.start2, window[2] + alignment.end2,
+            alignment.score, alignment.ops));
+      }
+      // Tokens aligned in this window cannot be aligned in another
+      System.arraycopy(window1, 0, seq1, window[0], windowLength1);
+      System.arraycopy(window2, 0, seq2, window[2], windowLength2);
+    }
+    log.finest("Aligned {0} sentence blocks in {1} windows: {2} alignments",
+        blocks.size(), windows.size(), alignments.size());
+    return alignments;
+  }
+
+}
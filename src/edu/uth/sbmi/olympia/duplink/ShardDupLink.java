@@ -0,0 +1,581 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * Command line functionality for running {@link DupLink} on a cohort of
+ * patient directories with several local worker JVMs ({@link ShardWorker}).
+ * The patients are split into shards balanced by their estimated size,
+ * failed shards are re-launched, and the per-patient outputs are merged into
+ * a single annotation (and details) file in the {@link RunDupLink} format.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class ShardDupLink {
+  private static final Log log = new Log(ShardDupLink.class);
+  public static int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+  public static int DEFAULT_RETRIES = 2;
+  public static String DEFAULT_HEAP = "2G";
+
+  /**
+   * A set of patient directories processed by one worker JVM.
+   */
+  private static class Shard {
+    final int number;
+    final List<Place> patients = new ArrayList<>();
+    long size = 0;
+
+    Shard(final int number) {
+      this.number = number;
+    }
+  }
+
+  public static void main(String[] argv) throws Exception {
+    argv = Config.init("olympia.properties", argv);
+
+    final Logger baseLogger = Logger.getLogger(ShardDupLink.class.getName());
+    baseLogger.setUseParentHandlers(false);
+
+    final ConsoleHandler handler = new ConsoleHandler();
+    handler.setLevel(Level.ALL);
+    handler.setFormatter(new LogFormatter(false));
+    baseLogger.addHandler(handler);
+
+    final String argumentStructure =
+        "Command: duplink-shard [cohort] [output] [parameters]\n" +
+        "    cohort:      [mandatory] directory with one document directory (see duplink) per patient\n" +
+        "    output:      [mandatory] annotation file (see duplink), document IDs are given as [patient]/[document]\n" +
+        "    --gap:       [optional]  gap penalty (default: " + DupLink.DEFAULT_GAP + "), must be <= 0.0\n" +
+        "    --penalty:   [optional]  similarity penalty (default: " + DupLink.DEFAULT_PENALTY + "), must be <= 0.0\n" +
+        "    --minScore:  [optional]  minimum score (default: " + DupLink.DEFAULT_MIN_SCORE + "), must be >0\n" +
+        "    --tokenized: [optional]  whether the text is already space-tokenized (default: " + RunDupLink.DEFAULT_TOKENIZED + "), if not " +
+                                     "the default Olympia tokenizer will be used instead. Value must be either 'true' or 'false'.\n" +
+        "    --anchor:    [optional]  minimum length in tokens of the exact repeats that anchor alignments (default: none), " +
+                                     "must be >0 (see duplink)\n" +
+        "    --anchorSources: [optional] see duplink (default: " + DupLink.DEFAULT_ANCHOR_SOURCES + ")\n" +
+        "    --boilerplate: [optional] boilerplate index (see duplink-boilerplate) to mask before alignment\n" +
+        "    --details:   [optional]  XML file containing details of the duplicates for all patients\n" +
+        "    --workers:   [optional]  number of worker JVMs to run at once (default: " + DEFAULT_WORKERS + "), must be >0\n" +
+        "    --shards:    [optional]  number of shards to split the patients into (default: the number of workers), must be >0\n" +
+        "    --retries:   [optional]  times a failed shard is re-launched (default: " + DEFAULT_RETRIES + "), must be >=0\n" +
+        "    --heap:      [optional]  maximum heap of each worker JVM (default: " + DEFAULT_HEAP + ")\n" +
+        "    --logging:   [optional]  logging level, options: [FINE, FINER, FINEST]\n" +
+        "\n" +
+        "Example: duplink-shard cohort/ duplink_out.txt --workers 8 --heap 2G --details duplink_details.xml\n" +
+        "\n" +
+        "Intermediate files and worker logs are kept in [output].parts until the merge succeeds.\n";
+
+    if (argv.length < 2 || argv.length % 2 != 0) {
+      log.severe("Improper number of arguments: {0}", argv.length);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+
+    final Place input = Place.fromFile(argv[0]);
+    if (input.isDirectory() == false) {
+      log.severe("Not a directory: {0}", input);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+    final List<Place> patients = new ArrayList<>();
+    for (final Place patientDir : input.getSortedChildren(Place.NAME_COMPARATOR)) {
+      if (patientDir.isDirectory() == false) {
+        log.warning("Not a patient directory, skipping: {0}", patientDir);
+      }
+      else if (patientDir.getSortedChildren().isEmpty()) {
+        log.warning("Empty patient directory, skipping: {0}", patientDir);
+      }
+      else {
+        patients.add(patientDir);
+      }
+    }
+    if (patients.isEmpty()) {
+      log.severe("No patient directories: {0}", input);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+
+    final Place output = Place.fromFile(argv[1]);
+    if (output.exists()) {
+      log.severe("Output file already exists: {0}", output);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+
+    // Parameters for the workers, validated here
+    final List<String> workerArgs = new ArrayList<>();
+    Place detailFile = null;
+    int workers = DEFAULT_WORKERS;
+    Integer numShards = null;
+    int retries = DEFAULT_RETRIES;
+    String heap = DEFAULT_HEAP;
+    for (int i = 2; i < argv.length; i += 2) {
+      if (argv[i].equals("--gap") || argv[i].equals("--penalty")) {
+        final String name = argv[i].substring(2);
+        double value = 0.0;
+        try {
+          value = Double.valueOf(argv[i+1]);
+        }
+        catch (NumberFormatException nfe) {
+          log.severe("Invalid {0} value: {1}", name, argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        if (value > 0.0) {
+          log.severe("Invalid {0} value: {1}", name, argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        workerArgs.add(argv[i]);
+        workerArgs.add(argv[i+1]);
+      }
+      else if (argv[i].equals("--minScore")) {
+        double minScore = 0.0;
+        try {
+          minScore = Double.valueOf(argv[i+1]);
+        }
+        catch (NumberFormatException nfe) {
+          log.severe("Invalid minScore value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        if (minScore <= 0.0) {
+          log.severe("Invalid minScore value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        workerArgs.add(argv[i]);
+        workerArgs.add(argv[i+1]);
+      }
+      else if (argv[i].equals("--tokenized")) {
+        final String value = argv[i+1].toLowerCase();
+        if (value.equals("true") == false && value.equals("false") == false) {
+          log.severe("Invalid tokenized value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        workerArgs.add(argv[i]);
+        workerArgs.add(value);
+      }
+      else if (argv[i].equals("--anchor")) {
+        int anchorLength = 0;
+        try {
+          anchorLength = Integer.valueOf(argv[i+1]);
+        }
+        catch (NumberFormatException nfe) {
+          log.severe("Invalid anchor value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        if (anchorLength <= 0) {
+          log.severe("Invalid anchor value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        workerArgs.add(argv[i]);
+        workerArgs.add(argv[i+1]);
+      }
+      else if (argv[i].equals("--anchorSources")) {
+        int anchorSources = 0;
+        try {
+          anchorSources = Integer.valueOf(argv[i+1]);
+        }
+        catch (NumberFormatException nfe) {
+          log.severe("Invalid anchorSources value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        if (anchorSources < 0) {
+          log.severe("Invalid anchorSources value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        workerArgs.add(argv[i]);
+        workerArgs.add(argv[i+1]);
+      }
+      else if (argv[i].equals("--boilerplate")) {
+        try {
+          BoilerplateIndex.read(Place.fromFile(argv[i+1]));
+        }
+        catch (IOException ioe) {
+          log.severe("Could not read boilerplate index: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        workerArgs.add(argv[i]);
+        workerArgs.add(argv[i+1]);
+      }
+      else if (argv[i].equals("--details")) {
+        detailFile = Place.fromFile(argv[i+1]);
+        if (detailFile.exists()) {
+          log.severe("Details file already exists: {0}", detailFile);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--workers") || argv[i].equals("--shards")) {
+        final String name = argv[i].substring(2);
+        int value = 0;
+        try {
+          value = Integer.valueOf(argv[i+1]);
+        }
+        catch (NumberFormatException nfe) {
+          log.severe("Invalid {0} value: {1}", name, argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        if (value <= 0) {
+          log.severe("Invalid {0} value: {1}", name, argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        if (argv[i].equals("--workers")) {
+          workers = value;
+        }
+        else {
+          numShards = value;
+        }
+      }
+      else if (argv[i].equals("--retries")) {
+        try {
+          retries = Integer.valueOf(argv[i+1]);
+        }
+        catch (NumberFormatException nfe) {
+          log.severe("Invalid retries value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        if (retries < 0) {
+          log.severe("Invalid retries value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--heap")) {
+        heap = argv[i+1];
+        if (heap.matches("[0-9]+[kKmMgG]?") == false) {
+          log.severe("Invalid heap value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--logging")) {
+        final String value = argv[i+1].toUpperCase();
+        if (value.equals("FINE")) {
+          log.setLevel(Log.FINE);
+        }
+        else if (value.equals("FINER")) {
+          log.setLevel(Log.FINER);
+        }
+        else if (value.equals("FINEST")) {
+          log.setLevel(Log.FINEST);
+        }
+        else {
+          log.severe("Invalid logging value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else {
+        log.severe("Unknown argument: {0}", argv[i]);
+        log.severe("{0}", argumentStructure);
+        System.exit(1);
+      }
+    }
+    workerArgs.add("--details");
+    workerArgs.add(Boolean.toString(detailFile != null));
+
+    // The parts of a failed run are re-used if the parameters are the same
+    final Place partDir = output.getSibling(output.getName() + ".parts");
+    final Place paramFile = partDir.getChild("parameters");
+    final String params = Strings.join(workerArgs, " ") + "\n";
+    try {
+      if (partDir.exists() == false) {
+        partDir.mkdir();
+        paramFile.write(params);
+      }
+      else if (paramFile.exists() == false ||
+               paramFile.readString().equals(params) == false) {
+        log.severe("Parts directory is from a run with other parameters: {0}",
+            partDir);
+        log.severe("{0}", argumentStructure);
+        System.exit(1);
+      }
+      else {
+        log.info("Re-using the completed patients in: {0}", partDir);
+      }
+    }
+    catch (IOException ioe) {
+      log.severe("Could not create directory: {0}", partDir);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+
+    final List<Shard> shards = makeShards(patients,
+        numShards == null ? workers : numShards);
+    for (final Shard shard : shards) {
+      final StringBuilder list = new StringBuilder();
+      for (final Place patientDir : shard.patients) {
+        list.append(patientDir.getAbsolutePath()).append("\n");
+      }
+      try {
+        partDir.getChild("shard" + shard.number + ".list").write(list.toString());
+      }
+      catch (IOException ioe) {
+        log.severe("Could not write to file: {0}", partDir);
+        log.severe("{0}", argumentStructure);
+        System.exit(1);
+      }
+      log.fine("Shard {0}: {1} patients, {2} bytes",
+          shard.number, shard.patients.size(), shard.size);
+    }
+    log.info("Running {0} patients in {1} shards with {2} workers",
+        patients.size(), shards.size(), workers);
+
+    final AtomicInteger numDone = new AtomicInteger();
+    final ExecutorService executor = Executors.newFixedThreadPool(workers);
+    final List<Future<Boolean>> futures = new ArrayList<>();
+    for (final Shard shard : shards) {
+      final int maxAttempts = retries + 1;
+      final String jvmHeap = heap;
+      futures.add(executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws IOException, InterruptedException {
+          for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            if (runShard(shard, partDir, jvmHeap, workerArgs, numDone,
+                         patients.size())) {
+              return true;
+            }
+            log.warning("Shard {0} failed (attempt {1} of {2}), see {3}",
+                shard.number, attempt, maxAttempts,
+                partDir.getChild("shard" + shard.number + ".log"));
+          }
+          return false;
+        }
+      }));
+    }
+    executor.shutdown();
+    boolean failed = false;
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        if (futures.get(i).get() == false) {
+          log.severe("Shard {0} failed after {1} attempts", i, retries + 1);
+          failed = true;
+        }
+      }
+      catch (ExecutionException ee) {
+        log.severe("Shard {0} failed: {1}", i, Log.wrap(ee.getCause()));
+        failed = true;
+      }
+    }
+    if (failed) {
+      log.severe("Not merging, completed patients are kept in: {0}", partDir);
+      System.exit(1);
+    }
+
+    try {
+      mergeAnnotations(patients, partDir, output);
+    }
+    catch (IOException ioe) {
+      log.severe("Could not write to file: {0}", output);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+    if (detailFile != null) {
+      try {
+        mergeDetails(patients, partDir, detailFile);
+      }
+      catch (IOException ioe) {
+        log.severe("Could not write to file: {0}", detailFile);
+        log.severe("{0}", argumentStructure);
+        System.exit(1);
+      }
+    }
+
+    for (final Place file : partDir.getChildren()) {
+      file.delete();
+    }
+    partDir.delete();
+    log.info("Merged {0} patients into: {1}", patients.size(), output);
+  }
+
+  /**
+   * Splits the patients into at most <var>numShards</var> shards of about
+   * equal size, estimated from the size of their files.  Each patient, from
+   * the largest, goes to the currently smallest shard.
+   */
+  private static List<Shard> makeShards(final List<Place> patients,
+                                        final int numShards) {
+    final Map<Place,Long> sizes = new HashMap<>();
+    for (final Place patientDir : patients) {
+      long size = 0;
+      for (final Place file : patientDir.getChildren()) {
+        size += file.length();
+      }
+      sizes.put(patientDir, size);
+    }
+    final List<Place> largestFirst = new ArrayList<>(patients);
+    Collections.sort(largestFirst, new Comparator<Place>() {
+      @Override
+      public int compare(final Place p1, final Place p2) {
+        return Long.compare(sizes.get(p2), sizes.get(p1));
+      }
+    });
+
+    final PriorityQueue<Shard> queue = new PriorityQueue<>(numShards,
+        new Comparator<Shard>() {
+          @Override
+          public int compare(final Shard s1, final Shard s2) {
+            final int c = Long.compare(s1.size, s2.size);
+            return c != 0 ? c : Integer.compare(s1.number, s2.number);
+          }
+        });
+    final int n = Math.min(numShards, patients.size());
+    for (int i = 0; i < n; i++) {
+      queue.add(new Shard(i));
+    }
+    for (final Place patientDir : largestFirst) {
+      final Shard shard = queue.poll();
+      shard.patients.add(patientDir);
+      shard.size += sizes.get(patientDir);
+      queue.add(shard);
+    }
+
+    final List<Shard> shards = new ArrayList<>(queue);
+    Collections.sort(shards, new Comparator<Shard>() {
+      @Override
+      public int compare(final Shard s1, final Shard s2) {
+        return Integer.compare(s1.number, s2.number);
+      }
+    });
+    return shards;
+  }
+
+  /**
+   * Runs a {@link ShardWorker} JVM on the given <var>shard</var> and waits for
+   * it, logging the progress it reports.  Returns whether it succeeded.
+   */
+  private static boolean runShard(final Shard shard, final Place partDir,
+                                  final String heap,
+                                  final List<String> workerArgs,
+                                  final AtomicInteger numDone,
+                                  final int numPatients)
+      throws IOException, InterruptedException {
+    final List<String> command = new ArrayList<>();
+    command.add(System.getProperty("java.home") + File.separator + "bin" +
+                File.separator + "java");
+    command.add("-ea");
+    command.add("-Xmx" + heap);
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(ShardWorker.class.getName());
+    command.add(partDir.getChild("shard" + shard.number + ".list").getPath());
+    command.add(partDir.getPath());
+    command.addAll(workerArgs);
+
+    final ProcessBuilder builder = new ProcessBuilder(command);
+    builder.redirectError(ProcessBuilder.Redirect.appendTo(
+        partDir.getChild("shard" + shard.number + ".log").toFile()));
+    final Process process = builder.start();
+    final BufferedReader reader = new BufferedReader(
+        new InputStreamReader(process.getInputStream()));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith(ShardWorker.DONE)) {
+          log.info("Shard {0}: {1} done ({2} of {3} patients)", shard.number,
+              line.substring(ShardWorker.DONE.length()),
+              numDone.incrementAndGet(), numPatients);
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+    return process.waitFor() == 0;
+  }
+
+  /**
+   * Concatenates the annotation part files of the patients under a single
+   * header line.
+   */
+  private static void mergeAnnotations(final List<Place> patients,
+                                       final Place partDir,
+                                       final Place output) throws IOException {
+    final Writer writer = new OutputStreamWriter(
+        output.openOutputStream(), "UTF-8");
+    try {
+      writer.write("document_id duplicate_id char_start char_end overlap_per\n");
+      for (final Place patientDir : patients) {
+        writer.write(readRaw(partDir.getChild(patientDir.getName() + ".txt")));
+      }
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Concatenates the <code>Document</code> elements of the details part files
+   * of the patients under a single root element.
+   */
+  private static void mergeDetails(final List<Place> patients,
+                                   final Place partDir,
+                                   final Place detailFile) throws IOException {
+    final Writer writer = new OutputStreamWriter(
+        detailFile.openOutputStream(), "UTF-8");
+    try {
+      String footer = null;
+      for (final Place patientDir : patients) {
+        final Place part = partDir.getChild(patientDir.getName() + ".xml");
+        final String xml = readRaw(part);
+        final int root = xml.indexOf("<Documents>");
+        final int end = xml.lastIndexOf("</Documents>");
+        if (root < 0 || end < 0) {
+          throw new IOException("Not a details file: " + part);
+        }
+        // Everything up to and including the line break after the root tag
+        int start = root + "<Documents>".length();
+        while (start < end && (xml.charAt(start) == '\r' ||
+                               xml.charAt(start) == '\n')) {
+          start++;
+        }
+        if (footer == null) {
+          writer.write(xml.substring(0, start));
+          footer = xml.substring(end);
+        }
+        writer.write(xml.substring(start, end));
+      }
+      writer.write(footer);
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Reads a UTF-8 part file as is, keeping its line breaks.
+   */
+  private static String readRaw(final Place file) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final InputStream in = file.openInputStream();
+    try {
+      final byte[] buffer = new byte[65536];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        bytes.write(buffer, 0, n);
+      }
+    }
+    finally {
+      in.close();
+    }
+    return bytes.toString("UTF-8");
+  }
+
+}
@@ -0,0 +1,180 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.text.*;
+import edu.uth.sbmi.olympia.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * Worker process of {@link ShardDupLink}: runs {@link DupLink} on each
+ * patient directory of one shard, writing a part file of the annotation (and
+ * details) output per patient.  Document IDs are qualified with the patient
+ * directory name, so the parts of all patients can simply be concatenated.
+ * <p>
+ * A part file is only renamed into place once complete, and patients that
+ * already have one are skipped, so a failed worker can be re-launched on the
+ * same shard.  The name of each patient finished by this process is printed
+ * to standard output for the coordinator.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class ShardWorker {
+  private static final Log log = new Log(ShardWorker.class);
+  /** Standard output prefix of a finished patient. */
+  public static final String DONE = "DONE ";
+
+  public static void main(String[] argv) throws Exception {
+    argv = Config.init("olympia.properties", argv);
+
+    final Logger baseLogger = Logger.getLogger(ShardWorker.class.getName());
+    baseLogger.setUseParentHandlers(false);
+
+    final ConsoleHandler handler = new ConsoleHandler();
+    handler.setLevel(Level.ALL);
+    handler.setFormatter(new LogFormatter(false));
+    baseLogger.addHandler(handler);
+
+    final String argumentStructure =
+        "Command: ShardWorker [shard] [parts] [parameters]\n" +
+        "    shard:       [mandatory] file listing one patient directory per line\n" +
+        "    parts:       [mandatory] directory for the per-patient part files\n" +
+        "    --gap:       [optional]  gap penalty (default: " + DupLink.DEFAULT_GAP + ")\n" +
+        "    --penalty:   [optional]  similarity penalty (default: " + DupLink.DEFAULT_PENALTY + ")\n" +
+        "    --minScore:  [optional]  minimum score (default: " + DupLink.DEFAULT_MIN_SCORE + ")\n" +
+        "    --tokenized: [optional]  whether the text is already space-tokenized (default: " + RunDupLink.DEFAULT_TOKENIZED + ")\n" +
+        "    --anchor:    [optional]  minimum length in tokens of the exact repeats that anchor alignments (default: none)\n" +
+        "    --anchorSources: [optional] latest earlier documents whose repeats are used (default: " + DupLink.DEFAULT_ANCHOR_SOURCES + "), 0 for all\n" +
+        "    --boilerplate: [optional] boilerplate index to mask before alignment\n" +
+        "    --details:   [optional]  whether to write a details part file per patient (default: false)\n" +
+        "\n" +
+        "Started by duplink-shard, not meant to be run directly.\n";
+
+    if (argv.length < 2 || argv.length % 2 != 0) {
+      log.severe("Improper number of arguments: {0}", argv.length);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+
+    final Place shard = Place.fromFile(argv[0]);
+    final Place partDir = Place.fromFile(argv[1]);
+    double gap = DupLink.DEFAULT_GAP;
+    double penalty = DupLink.DEFAULT_PENALTY;
+    double minScore = DupLink.DEFAULT_MIN_SCORE;
+    boolean tokenized = RunDupLink.DEFAULT_TOKENIZED;
+    boolean details = false;
+    int anchorLength = 0;
+    int anchorSources = DupLink.DEFAULT_ANCHOR_SOURCES;
+    BoilerplateIndex boilerplate = null;
+    for (int i = 2; i < argv.length; i += 2) {
+      try {
+        if (argv[i].equals("--gap")) {
+          gap = Double.valueOf(argv[i+1]);
+        }
+        else if (argv[i].equals("--penalty")) {
+          penalty = Double.valueOf(argv[i+1]);
+        }
+        else if (argv[i].equals("--minScore")) {
+          minScore = Double.valueOf(argv[i+1]);
+        }
+        else if (argv[i].equals("--tokenized")) {
+          tokenized = Boolean.valueOf(argv[i+1]);
+        }
+        else if (argv[i].equals("--anchor")) {
+          anchorLength = Integer.valueOf(argv[i+1]);
+        }
+        else if (argv[i].equals("--anchorSources")) {
+          anchorSources = Integer.valueOf(argv[i+1]);
+        }
+        else if (argv[i].equals("--boilerplate")) {
+          boilerplate = BoilerplateIndex.read(Place.fromFile(argv[i+1]));
+        }
+        else if (argv[i].equals("--details")) {
+          details = Boolean.valueOf(argv[i+1]);
+        }
+        else {
+          log.severe("Unknown argument: {0}", argv[i]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      catch (NumberFormatException nfe) {
+        log.severe("Invalid {0} value: {1}", argv[i], argv[i+1]);
+        log.severe("{0}", argumentStructure);
+        System.exit(1);
+      }
+    }
+    if (tokenized) {
+      Config.get("edu.uth.sbmi.olympia.text.annotator.TOKEN")
+            .set("edu.uth.sbmi.olympia.text.annotators.WhitespaceTokenizer");
+    }
+
+    final DupLink dupLink = new DupLink(gap, penalty, minScore);
+    dupLink.setAnchorLength(anchorLength);
+    dupLink.setAnchorSources(anchorSources);
+    dupLink.setBoilerplate(boilerplate);
+    for (final String line : shard.readLines()) {
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      final Place patientDir = Place.fromFile(line.trim());
+      final String patient = patientDir.getName();
+      final Place part = partDir.getChild(patient + ".txt");
+      final Place detailPart = details ? partDir.getChild(patient + ".xml") : null;
+      if (part.exists()) {
+        log.fine("Already done: {0}", patient);
+      }
+      else {
+        run(dupLink, patientDir, part, detailPart, argumentStructure);
+        System.out.println(DONE + patient);
+        System.out.flush();
+      }
+    }
+  }
+
+  /**
+   * Runs {@link DupLink} on a single patient directory and writes its part
+   * files.
+   */
+  private static void run(final DupLink dupLink, final Place patientDir,
+                          final Place part, final Place detailPart,
+                          final String argumentStructure) throws IOException {
+    final String patient = patientDir.getName();
+    log.info("Patient: {0}", patient);
+    final List<Document> documents = RunDupLink.readDocuments(
+        patientDir.getSortedChildren(Place.NUMERIC_NAME_COMPARATOR),
+        argumentStructure);
+    for (final Document document : documents) {
+      document.setDocumentID(patient + "/" + document.getDocumentID());
+    }
+    dupLink.findDuplicates(documents);
+
+    // The annotation part is written last, it marks the patient as done
+    if (detailPart != null) {
+      final Place temp = detailPart.getSibling(detailPart.getName() + ".tmp");
+      RunDupLink.writeDetails(documents, temp);
+      rename(temp, detailPart);
+    }
+    final Place temp = part.getSibling(part.getName() + ".tmp");
+    final Writer writer = temp.openWriter();
+    try {
+      RunDupLink.writeAnnotations(documents, writer);
+    }
+    finally {
+      writer.close();
+    }
+    rename(temp, part);
+  }
+
+  /**
+   * Renames a finished temporary part file into place.
+   */
+  private static void rename(final Place temp,
+                             final Place file) throws IOException {
+    if (temp.renameTo(file) == false) {
+      throw new IOException("Could not rename " + temp + " to " + file);
+    }
+  }
+
+}
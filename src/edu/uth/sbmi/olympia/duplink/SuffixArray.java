@@ -0,0 +1,352 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.util.*;
+
+import java.util.*;
+
+/**
+ * Generalized suffix array, with its LCP array, over the token IDs of all the
+ * documents of a {@link Corpus}.  The documents are concatenated with a
+ * distinct separator after each, so no common prefix crosses a document
+ * boundary.  The suffix array is built by prefix doubling with radix sorts
+ * in <i>O(n log n)</i>, and the LCP array in <i>O(n)</i> (Kasai et al.).
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class SuffixArray {
+  private static final Log log = new Log(SuffixArray.class);
+
+  private final int[] text;
+  private final int[] docStarts;
+  private final int[] sa;
+  private final int[] lcp;
+
+  /**
+   * Creates the <code>SuffixArray</code> of the documents of the given
+   * {@link TokenArena}, whose token IDs are below <var>vocabularySize</var>.
+   */
+  public SuffixArray(final TokenArena arena, final int vocabularySize) {
+    final int n = arena.getNumTokens() + arena.size();
+    text = new int[n];
+    docStarts = new int[arena.size()];
+    int[] ids = new int[0];
+    int pos = 0;
+    for (int d = 0; d < arena.size(); d++) {
+      docStarts[d] = pos;
+      final int length = arena.getTokenLength(d);
+      ids = arena.getTokenIDs(d, 0, length, ids);
+      System.arraycopy(ids, 0, text, pos, length);
+      pos += length;
+      text[pos++] = vocabularySize + d;
+    }
+    sa = buildSuffixArray(text, vocabularySize + arena.size());
+    lcp = buildLCP(text, sa);
+    log.fine("Suffix array: {0} tokens in {1} documents", n, arena.size());
+  }
+
+  /**
+   * Sorts the suffixes of <var>s</var>, whose values are in
+   * <code>[0, alphabet)</code>, by prefix doubling: in each round the
+   * suffixes are radix sorted by the ranks of their first <var>k</var> and
+   * next <var>k</var> symbols.
+   */
+  private static int[] buildSuffixArray(final int[] s, final int alphabet) {
+    final int n = s.length;
+    final int[] sa = new int[n];
+    int[] rank = new int[n];
+    int[] second = new int[n];
+    int[] count = new int[Math.max(alphabet, n) + 1];
+    for (int i = 0; i < n; i++) {
+      rank[i] = s[i];
+      count[rank[i]]++;
+    }
+    for (int i = 1; i < alphabet; i++) {
+      count[i] += count[i-1];
+    }
+    for (int i = n - 1; i >= 0; i--) {
+      sa[--count[rank[i]]] = i;
+    }
+    int m = alphabet;
+    for (int k = 1; k < n; k <<= 1) {
+      // Order by second key: suffixes without one first, then by rank
+      int p = 0;
+      for (int i = n - k; i < n; i++) {
+        second[p++] = i;
+      }
+      for (int i = 0; i < n; i++) {
+        if (sa[i] >= k) {
+          second[p++] = sa[i] - k;
+        }
+      }
+      // Stable counting sort by first key
+      Arrays.fill(count, 0, m, 0);
+      for (int i = 0; i < n; i++) {
+        count[rank[i]]++;
+      }
+      for (int i = 1; i < m; i++) {
+        count[i] += count[i-1];
+      }
+      for (int i = n - 1; i >= 0; i--) {
+        sa[--count[rank[second[i]]]] = second[i];
+      }
+      // Re-rank, the old ranks are kept in second
+      final int[] swap = second;
+      second = rank;
+      rank = swap;
+      p = 1;
+      rank[sa[0]] = 0;
+      for (int i = 1; i < n; i++) {
+        final int a = sa[i-1];
+        final int b = sa[i];
+        final boolean same = second[a] == second[b] &&
+            (a + k < n ? second[a+k] : -1) == (b + k < n ? second[b+k] : -1);
+        rank[b] = same ? p - 1 : p++;
+      }
+      if (p >= n) {
+        break;
+      }
+      m = p;
+    }
+    return sa;
+  }
+
+  /**
+   * Returns the LCP array of the suffix array: <code>lcp[i]</code> is the
+   * length of the longest common prefix of the suffixes <code>sa[i-1]</code>
+   * and <code>sa[i]</code>.
+   */
+  private static int[] buildLCP(final int[] s, final int[] sa) {
+    final int n = s.length;
+    final int[] inverse = new int[n];
+    for (int i = 0; i < n; i++) {
+      inverse[sa[i]] = i;
+    }
+    final int[] lcp = new int[n];
+    int h = 0;
+    for (int i = 0; i < n; i++) {
+      if (inverse[i] > 0) {
+        final int j = sa[inverse[i] - 1];
+        while (i + h < n && j + h < n && s[i+h] == s[j+h]) {
+          h++;
+        }
+        lcp[inverse[i]] = h;
+        if (h > 0) {
+          h--;
+        }
+      }
+      else {
+        h = 0;
+      }
+    }
+    return lcp;
+  }
+
+  /**
+   * Returns the document containing the given text position.
+   */
+  private int getDocument(final int pos) {
+    final int d = Arrays.binarySearch(docStarts, pos);
+    return d >= 0 ? d : -d - 2;
+  }
+
+  /**
+   * Returns the maximal exact repeats of at least <var>minLength</var>
+   * tokens between two different documents, with the earlier document as
+   * the source.  The repeats are ordered by destination document, source
+   * document, destination token, and source token.
+   * <p>
+   * Suffixes sharing a prefix of at least <var>minLength</var> tokens are
+   * consecutive in the suffix array, and the length of the repeat of any two
+   * of them is the minimum LCP between them.  A pair is only reported if the
+   * tokens before it differ (it is left-maximal); it is right-maximal by
+   * definition of the LCP.
+   * <p>
+   * If <var>maxSources</var> is 0, every maximal exact repeat is returned,
+   * which is quadratic in the number of copies of a text.  Otherwise each
+   * suffix is only paired with the closest (in the suffix array) suffix of
+   * the earliest document sharing the prefix, which is the first source
+   * {@link DupLink} tries, and of each of the <var>maxSources</var> latest
+   * documents before its own.  The number of repeats is then linear in the
+   * number of suffixes, but repeats with the other earlier documents, and
+   * with other copies in the same document, are not returned.
+   */
+  public List<ExactRepeat> findRepeats(final int minLength,
+                                       final int maxSources) {
+    assert minLength > 0;
+    assert maxSources >= 0;
+    final int n = sa.length;
+    final List<ExactRepeat> repeats = new ArrayList<>();
+    int blockStart = 0;
+    for (int i = 1; i <= n; i++) {
+      if (i < n && lcp[i] >= minLength) {
+        continue;
+      }
+      // Suffixes [blockStart, i) all share at least minLength tokens
+      if (i - blockStart > 1) {
+        addRepeats(blockStart, i, maxSources, repeats);
+      }
+      blockStart = i;
+    }
+    Collections.sort(repeats, new Comparator<ExactRepeat>() {
+      @Override
+      public int compare(final ExactRepeat r1, final ExactRepeat r2) {
+        int c = Integer.compare(r1.destDocument, r2.destDocument);
+        if (c == 0) {
+          c = Integer.compare(r1.srcDocument, r2.srcDocument);
+        }
+        if (c == 0) {
+          c = Integer.compare(r1.destStart, r2.destStart);
+        }
+        if (c == 0) {
+          c = Integer.compare(r1.srcStart, r2.srcStart);
+        }
+        return c;
+      }
+    });
+    log.fine("Found {0} exact repeats of at least {1} tokens",
+        repeats.size(), minLength);
+    return repeats;
+  }
+
+  /**
+   * Adds the repeats of the block of suffixes <code>[start, end)</code> of
+   * the suffix array: each suffix paired with the earliest and the
+   * <var>maxSources</var> latest earlier documents of the block, or with
+   * every suffix of another document if <var>maxSources</var> is 0.
+   */
+  private void addRepeats(final int start, final int end,
+                          final int maxSources,
+                          final List<ExactRepeat> repeats) {
+    final int k = end - start;
+    if (maxSources == 0) {
+      final int[][] minLCP = buildMinTable(start, end);
+      for (int a = start; a < end; a++) {
+        final int docA = getDocument(sa[a]);
+        for (int b = a + 1; b < end; b++) {
+          if (getDocument(sa[b]) != docA) {
+            addRepeat(a, b, start, minLCP, repeats);
+          }
+        }
+      }
+      return;
+    }
+    // The suffixes of the block by document, then in suffix array order
+    final long[] suffixes = new long[k];
+    for (int a = start; a < end; a++) {
+      suffixes[a - start] = ((long) getDocument(sa[a]) << 32) | a;
+    }
+    Arrays.sort(suffixes);
+    final int[][] minLCP = buildMinTable(start, end);
+    // Document g of the block has the suffixes [groups[g], groups[g+1])
+    final int[] groups = new int[k + 1];
+    int numGroups = 0;
+    for (int from = 0; from < k; ) {
+      final int doc = (int) (suffixes[from] >>> 32);
+      int to = from + 1;
+      while (to < k && (int) (suffixes[to] >>> 32) == doc) {
+        to++;
+      }
+      groups[numGroups + 1] = to;
+      final int recent = Math.max(1, numGroups - maxSources);
+      for (int o = from; o < to; o++) {
+        final int a = (int) suffixes[o];
+        for (int g = 0; g < numGroups; g = g == 0 ? recent : g + 1) {
+          addRepeat(a, closest(suffixes, groups[g], groups[g+1], a, start,
+              minLCP), start, minLCP, repeats);
+        }
+      }
+      numGroups++;
+      from = to;
+    }
+  }
+
+  /**
+   * Adds the repeat of the suffixes at <var>a</var> and <var>b</var> (of
+   * different documents) of the suffix array, if it is left-maximal.
+   */
+  private void addRepeat(final int a, final int b, final int start,
+                         final int[][] minLCP,
+                         final List<ExactRepeat> repeats) {
+    final int posA = sa[a];
+    final int posB = sa[b];
+    final int docA = getDocument(posA);
+    final int docB = getDocument(posB);
+    if (posA != docStarts[docA] && posB != docStarts[docB] &&
+        text[posA-1] == text[posB-1]) {
+      return;
+    }
+    final int length = rangeMin(minLCP, Math.min(a, b) + 1 - start,
+                                Math.max(a, b) + 1 - start);
+    if (docA < docB) {
+      repeats.add(new ExactRepeat(docA, posA - docStarts[docA],
+          docB, posB - docStarts[docB], length));
+    }
+    else {
+      repeats.add(new ExactRepeat(docB, posB - docStarts[docB],
+          docA, posA - docStarts[docA], length));
+    }
+  }
+
+  /**
+   * Returns the suffix among <code>suffixes[from, to)</code> (in suffix
+   * array order) with the longest common prefix with the suffix at
+   * <var>a</var>: the one right before or after it.
+   */
+  private static int closest(final long[] suffixes, final int from,
+                             final int to, final int a, final int start,
+                             final int[][] minLCP) {
+    int low = from;
+    int high = to;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if ((int) suffixes[mid] < a) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
+    }
+    if (low == from) {
+      return (int) suffixes[from];
+    }
+    final int before = (int) suffixes[low - 1];
+    if (low == to) {
+      return before;
+    }
+    final int after = (int) suffixes[low];
+    return rangeMin(minLCP, before + 1 - start, a + 1 - start) >=
+           rangeMin(minLCP, a + 1 - start, after + 1 - start) ? before : after;
+  }
+
+  /**
+   * Returns the sparse table of the minima of the LCP values of the block
+   * <code>[start, end)</code>: <code>table[j][i]</code> is the minimum of
+   * the <code>2^j</code> values from <code>lcp[start + i]</code>.
+   */
+  private int[][] buildMinTable(final int start, final int end) {
+    final int k = end - start;
+    final int levels = 32 - Integer.numberOfLeadingZeros(k);
+    final int[][] table = new int[levels][];
+    table[0] = Arrays.copyOfRange(lcp, start, end);
+    for (int j = 1; j < levels; j++) {
+      final int[] prev = table[j-1];
+      final int half = 1 << (j - 1);
+      table[j] = new int[k - (1 << j) + 1];
+      for (int i = 0; i < table[j].length; i++) {
+        table[j][i] = Math.min(prev[i], prev[i + half]);
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Returns the minimum of the values <code>[from, to)</code> of a sparse
+   * table built by {@link #buildMinTable}.
+   */
+  private static int rangeMin(final int[][] table, final int from,
+                              final int to) {
+    final int j = 31 - Integer.numberOfLeadingZeros(to - from);
+    return Math.min(table[j][from], table[j][to - (1 << j)]);
+  }
+
+}
@@ -0,0 +1,429 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.text.*;
+import edu.uth.sbmi.olympia.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Command line functionality for running {@link DupLink} over a grid of
+ * parameter settings.  The documents are read and tokenized once into a
+ * {@link Corpus} whose token IDs are shared by all the settings, as are the
+ * exact repeats and boilerplate runs, which do not depend on the scores.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class SweepDupLink {
+  private static final Log log = new Log(SweepDupLink.class);
+  public static int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * One parameter setting of the sweep, along with its results.
+   */
+  private static class Setting {
+    final double gap;
+    final double penalty;
+    final double minScore;
+    final Place output;
+    final Place detailFile;
+    long time = -1;
+    int numLinks = 0;
+    int numClusters = 0;
+
+    Setting(final double gap, final double penalty, final double minScore,
+            final Place outputDir, final boolean details) {
+      this.gap = gap;
+      this.penalty = penalty;
+      this.minScore = minScore;
+      final String name = "duplink_gap" + gap + "_penalty" + penalty +
+          "_minScore" + minScore;
+      this.output = outputDir.getChild(name + ".txt");
+      this.detailFile = details ? outputDir.getChild(name + ".xml") : null;
+    }
+  }
+
+  public static void main(String[] argv) throws Exception {
+    argv = Config.init("olympia.properties", argv);
+
+    final Logger baseLogger = Logger.getLogger(SweepDupLink.class.getName());
+    baseLogger.setUseParentHandlers(false);
+
+    final ConsoleHandler handler = new ConsoleHandler();
+    handler.setLevel(Level.ALL);
+    handler.setFormatter(new LogFormatter(false));
+    baseLogger.addHandler(handler);
+
+    final String argumentStructure =
+        "Command: duplink-sweep [documents] [output] [parameters]\n" +
+        "    documents:   [mandatory] document directory (see duplink)\n" +
+        "    output:      [mandatory] output directory, one annotation file (see duplink) per setting plus summary.txt\n" +
+        "    --gap:       [optional]  comma-separated gap penalties (default: " + DupLink.DEFAULT_GAP + "), each must be <= 0.0\n" +
+        "    --penalty:   [optional]  comma-separated similarity penalties (default: " + DupLink.DEFAULT_PENALTY + "), each must be <= 0.0\n" +
+        "    --minScore:  [optional]  comma-separated minimum scores (default: " + DupLink.DEFAULT_MIN_SCORE + "), each must be >0\n" +
+        "    --tokenized: [optional]  whether the text is already space-tokenized (default: " + RunDupLink.DEFAULT_TOKENIZED + "), if not " +
+                                     "the default Olympia tokenizer will be used instead. Value must be either 'true' or 'false'.\n" +
+        "    --anchor:    [optional]  minimum length in tokens of the exact repeats that anchor alignments (default: none), " +
+                                     "must be >0 (see duplink).  Used by every setting.\n" +
+        "    --anchorSources: [optional] see duplink (default: " + DupLink.DEFAULT_ANCHOR_SOURCES + ").  Used by every setting.\n" +
+        "    --boilerplate: [optional] boilerplate index to mask before alignment (see duplink).  Used by every setting.\n" +
+        "    --sentences: [optional]  sentence splitter, options: [newline, aggressive] (default: none), see duplink.  " +
+                                     "Used by every setting, cannot be combined with --anchor.\n" +
+        "    --details:   [optional]  whether to write an XML details file per setting (default: false). " +
+                                     "Value must be either 'true' or 'false'.\n" +
+        "    --threads:   [optional]  number of settings to run concurrently (default: " + DEFAULT_THREADS + "), must be >0\n" +
+        "    --logging:   [optional]  logging level, options: [FINE, FINER, FINEST]\n" +
+        "\n" +
+        "Every combination of the --gap, --penalty, and --minScore values is run.\n" +
+        "\n" +
+        "Example: duplink-sweep documents/ sweep_out/ --gap -1,-5 --penalty -1,-2,-10 --minScore 10,25,50\n" +
+        "\n" +
+        "Summary: space-separated table with one row per setting:\n" +
+        "    [gap] [penalty] [minScore] [time_ms] [links] [clusters] [output]\n";
+
+    if (argv.length < 2 || argv.length % 2 != 0) {
+      log.severe("Improper number of arguments: {0}", argv.length);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+
+    final Place input = Place.fromFile(argv[0]);
+    if (input.isDirectory() == false) {
+      log.severe("Not a directory: {0}", input);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+    final List<? extends Place> inputFiles = input.getSortedChildren(
+        Place.NUMERIC_NAME_COMPARATOR);
+    if (inputFiles.isEmpty()) {
+      log.severe("Empty directory: {0}", input);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+
+    final Place outputDir = Place.fromFile(argv[1]);
+    if (outputDir.exists()) {
+      log.severe("Output directory already exists: {0}", outputDir);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+
+    List<Double> gaps = Collections.singletonList(DupLink.DEFAULT_GAP);
+    List<Double> penalties = Collections.singletonList(DupLink.DEFAULT_PENALTY);
+    List<Double> minScores = Collections.singletonList(DupLink.DEFAULT_MIN_SCORE);
+    boolean tokenized = RunDupLink.DEFAULT_TOKENIZED;
+    boolean details = false;
+    int anchorLength = 0;
+    int anchorSources = DupLink.DEFAULT_ANCHOR_SOURCES;
+    BoilerplateIndex boilerplate = null;
+    String sentenceSplitter = null;
+    int threads = DEFAULT_THREADS;
+    for (int i = 2; i < argv.length; i += 2) {
+      if (argv[i].equals("--gap")) {
+        gaps = parseValues(argv[i+1]);
+        if (gaps == null || Collections.max(gaps) > 0.0) {
+          log.severe("Invalid gap value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--penalty")) {
+        penalties = parseValues(argv[i+1]);
+        if (penalties == null || Collections.max(penalties) > 0.0) {
+          log.severe("Invalid penalty value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--minScore")) {
+        minScores = parseValues(argv[i+1]);
+        if (minScores == null || Collections.min(minScores) <= 0.0) {
+          log.severe("Invalid minScore value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--tokenized")) {
+        final String value = argv[i+1].toLowerCase();
+        if (value.equals("true")) {
+          tokenized = true;
+        }
+        else if (value.equals("false")) {
+          tokenized = false;
+        }
+        else {
+          log.severe("Invalid tokenized value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--anchor")) {
+        try {
+          anchorLength = Integer.valueOf(argv[i+1]);
+        }
+        catch (NumberFormatException nfe) {
+          log.severe("Invalid anchor value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        if (anchorLength <= 0) {
+          log.severe("Invalid anchor value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--anchorSources")) {
+        try {
+          anchorSources = Integer.valueOf(argv[i+1]);
+        }
+        catch (NumberFormatException nfe) {
+          log.severe("Invalid anchorSources value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        if (anchorSources < 0) {
+          log.severe("Invalid anchorSources value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--boilerplate")) {
+        try {
+          boilerplate = BoilerplateIndex.read(Place.fromFile(argv[i+1]));
+        }
+        catch (IOException ioe) {
+          log.severe("Could not read boilerplate index: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--sentences")) {
+        final String value = argv[i+1].toLowerCase();
+        if (value.equals("newline")) {
+          sentenceSplitter =
+              "edu.uth.sbmi.olympia.text.annotators.NewlineSentenceSegmenter";
+        }
+        else if (value.equals("aggressive")) {
+          sentenceSplitter =
+              "edu.uth.sbmi.olympia.text.annotators.AggressiveSentenceSplitter";
+        }
+        else {
+          log.severe("Invalid sentences value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--details")) {
+        final String value = argv[i+1].toLowerCase();
+        if (value.equals("true")) {
+          details = true;
+        }
+        else if (value.equals("false")) {
+          details = false;
+        }
+        else {
+          log.severe("Invalid details value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--threads")) {
+        try {
+          threads = Integer.valueOf(argv[i+1]);
+        }
+        catch (NumberFormatException nfe) {
+          log.severe("Invalid threads value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+        if (threads <= 0) {
+          log.severe("Invalid threads value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else if (argv[i].equals("--logging")) {
+        final String value = argv[i+1].toUpperCase();
+        if (value.equals("FINE")) {
+          log.setLevel(Log.FINE);
+        }
+        else if (value.equals("FINER")) {
+          log.setLevel(Log.FINER);
+        }
+        else if (value.equals("FINEST")) {
+          log.setLevel(Log.FINEST);
+        }
+        else {
+          log.severe("Invalid logging value: {0}", argv[i+1]);
+          log.severe("{0}", argumentStructure);
+          System.exit(1);
+        }
+      }
+      else {
+        log.severe("Unknown argument: {0}", argv[i]);
+        log.severe("{0}", argumentStructure);
+        System.exit(1);
+      }
+    }
+    if (sentenceSplitter != null && anchorLength > 0) {
+      log.severe("--sentences and --anchor cannot be combined");
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+    if (tokenized) {
+      Config.get("edu.uth.sbmi.olympia.text.annotator.TOKEN")
+            .set("edu.uth.sbmi.olympia.text.annotators.WhitespaceTokenizer");
+    }
+    if (sentenceSplitter != null) {
+      Config.get("edu.uth.sbmi.olympia.text.annotator.SENTENCE")
+            .set(sentenceSplitter);
+    }
+
+    try {
+      outputDir.mkdir();
+    }
+    catch (IOException ioe) {
+      log.severe("Could not create directory: {0}", outputDir);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+
+    // Read and tokenize once, the settings share the token IDs
+    final List<Document> documents =
+        RunDupLink.readDocuments(inputFiles, argumentStructure);
+    if (sentenceSplitter != null) {
+      for (final Document document : documents) {
+        RunDupLink.annotateSentences(document);
+      }
+    }
+    final Corpus corpus = new Corpus(documents);
+
+    // Neither the repeats nor the boilerplate depend on the scores
+    final DupLink template = new DupLink();
+    template.setAnchorLength(anchorLength);
+    template.setAnchorSources(anchorSources);
+    template.setBoilerplate(boilerplate);
+    template.setSentenceSplitter(sentenceSplitter);
+    if (anchorLength > 0) {
+      template.setRepeats(DupLink.findRepeats(corpus, anchorLength,
+          anchorSources));
+    }
+    if (boilerplate != null) {
+      template.setBoilerplateRuns(boilerplate.findRuns(corpus));
+    }
+    final List<Setting> settings = new ArrayList<>();
+    for (final double gap : new TreeSet<>(gaps)) {
+      for (final double penalty : new TreeSet<>(penalties)) {
+        for (final double minScore : new TreeSet<>(minScores)) {
+          settings.add(new Setting(gap, penalty, minScore, outputDir, details));
+        }
+      }
+    }
+    log.info("Running {0} settings on {1} documents with {2} threads",
+        settings.size(), corpus.size(), threads);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final List<Future<?>> futures = new ArrayList<>();
+    for (final Setting setting : settings) {
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          run(setting, corpus, template);
+          return null;
+        }
+      }));
+    }
+    executor.shutdown();
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        futures.get(i).get();
+      }
+      catch (ExecutionException ee) {
+        log.severe("Setting failed: {0}", settings.get(i).output);
+        log.severe("{0}", Log.wrap(ee.getCause()));
+        System.exit(1);
+      }
+    }
+
+    final Place summary = outputDir.getChild("summary.txt");
+    final StringBuilder table = new StringBuilder();
+    table.append("gap penalty minScore time_ms links clusters output\n");
+    for (final Setting setting : settings) {
+      table.append(setting.gap + " " + setting.penalty + " " +
+          setting.minScore + " " + setting.time + " " + setting.numLinks +
+          " " + setting.numClusters + " " + setting.output.getName() + "\n");
+    }
+    try {
+      summary.write(table.toString());
+    }
+    catch (IOException ioe) {
+      log.severe("Could not write to file: {0}", summary);
+      log.severe("{0}", argumentStructure);
+      System.exit(1);
+    }
+    log.info("Summary:\n{0}", table);
+  }
+
+  /**
+   * Runs {@link DupLink} for a single <var>setting</var> on the
+   * <var>corpus</var>, with the options, repeats, and boilerplate runs of
+   * the <var>template</var>, and writes its output files.
+   */
+  private static void run(final Setting setting, final Corpus corpus,
+                          final DupLink template) throws IOException {
+    final long start = System.currentTimeMillis();
+    final DupLink dupLink = template.withScores(
+        setting.gap, setting.penalty, setting.minScore);
+    final List<LinkRecord> records = dupLink.findLinks(corpus);
+    setting.time = System.currentTimeMillis() - start;
+
+    final Set<String> srcKeys = new HashSet<>();
+    for (final LinkRecord record : records) {
+      srcKeys.add(record.getSourceDocument() + ":" +
+          record.getSourceStart() + "-" + record.getSourceEnd());
+    }
+    setting.numLinks = records.size();
+    setting.numClusters = srcKeys.size();
+    log.fine("Setting: gap={0} penalty={1} minScore={2}  ({3} ms, {4} links)",
+        setting.gap, setting.penalty, setting.minScore, setting.time,
+        setting.numLinks);
+
+    // The annotations only need the token offsets of the corpus
+    final Writer writer = setting.output.openWriter();
+    try {
+      writer.write("document_id duplicate_id char_start char_end overlap_per\n");
+      RunDupLink.writeAnnotations(records, corpus, writer);
+    }
+    finally {
+      writer.close();
+    }
+    // Link annotations are only needed for the details
+    if (setting.detailFile != null) {
+      final List<Document> documents = corpus.newDocuments();
+      for (final LinkRecord record : records) {
+        record.toLink(documents).attach();
+      }
+      RunDupLink.writeDetails(documents, setting.detailFile);
+    }
+  }
+
+  /**
+   * Parses a comma-separated list of numbers, returning <code>null</code> if
+   * any of them is not a number.
+   */
+  private static List<Double> parseValues(final String arg) {
+    final List<Double> values = new ArrayList<>();
+    for (final String value : arg.split(",")) {
+      try {
+        values.add(Double.valueOf(value.trim()));
+      }
+      catch (NumberFormatException nfe) {
+        return null;
+      }
+    }
+    return values;
+  }
+
+}
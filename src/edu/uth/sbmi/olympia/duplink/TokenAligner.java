@@ -0,0 +1,183 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.util.*;
+import edu.uth.sbmi.olympia.util.align.*;
+
+import java.util.*;
+
+/**
+ * Smith-Waterman local alignment over token ID sequences.  Produces the same
+ * alignments as {@link SmithWaterman#alignMulti} with a similarity of 1.0 for
+ * equal tokens and <var>penalty</var> otherwise, but keeps only two rows of
+ * scores plus one byte of traceback per cell, and re-uses its buffers between
+ * calls.
+ * <p>
+ * The traceback is a single array, so at most {@link #MAX_CELLS} cells can be
+ * aligned at once (e.g., two sequences of about 46,000 tokens each).  Larger
+ * sequences are rejected, see {@link #canAlign}.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class TokenAligner {
+  private static final Log log = new Log(TokenAligner.class);
+  private static final byte START = 0;
+  private static final byte UP_LEFT = 1;
+  private static final byte UP = 2;
+  private static final byte LEFT = 3;
+  private static final int USED = -1;
+  /** Most cells (including the zero row and column) of one alignment. */
+  public static final long MAX_CELLS = Integer.MAX_VALUE - 8;
+
+  private final double gap;
+  private final double penalty;
+  private double[] prevRow = new double[0];
+  private double[] currRow = new double[0];
+  private byte[] dirs = new byte[0];
+  private byte[] ops = new byte[0];
+
+  /**
+   * Creates a new <code>TokenAligner</code> with the given <var>gap</var> and
+   * <var>penalty</var> scores.
+   */
+  public TokenAligner(final double gap, final double penalty) {
+    this.gap = gap;
+    this.penalty = penalty;
+  }
+
+  /**
+   * Returns whether sequences of <var>length1</var> and <var>length2</var>
+   * tokens are small enough to be aligned.
+   */
+  public static boolean canAlign(final int length1, final int length2) {
+    return (long) (length1 + 1) * (length2 + 1) <= MAX_CELLS;
+  }
+
+  /**
+   * Returns the non-overlapping local alignments between the first
+   * <var>length1</var> tokens of <var>seq1</var> and the first
+   * <var>length2</var> tokens of <var>seq2</var>, best first, until the best
+   * remaining alignment scores below <var>minScore</var>.  Token IDs must be
+   * non-negative.  The aligned tokens are overwritten in both arrays.
+   *
+   * @throws IllegalArgumentException if the sequences are too long to align
+   *         (see {@link #canAlign}), before either array is changed
+   */
+  public List<TokenAlignment> alignMulti(final int[] seq1, final int length1,
+                                         final int[] seq2, final int length2,
+                                         final double minScore) {
+    if (canAlign(length1, length2) == false) {
+      throw new IllegalArgumentException("sequences too long to align: " +
+          length1 + " x " + length2);
+    }
+    final int cols = length2 + 1;
+    final long cells = (long) (length1 + 1) * cols;
+    if (dirs.length < cells) {
+      dirs = new byte[(int) cells];
+    }
+    if (prevRow.length < cols) {
+      prevRow = new double[cols];
+      currRow = new double[cols];
+    }
+    if (ops.length < length1 + length2) {
+      ops = new byte[length1 + length2];
+    }
+
+    final List<TokenAlignment> alignments = new ArrayList<>();
+    while (true) {
+      // Fill the matrix, keeping the first (row-major) best cell
+      Arrays.fill(prevRow, 0, cols, 0.0);
+      Arrays.fill(dirs, 0, cols, START);
+      double bestScore = 0.0;
+      int bestRow = 0;
+      int bestCol = 0;
+      for (int row = 1; row <= length1; row++) {
+        final int item1 = seq1[row - 1];
+        final int offset = row * cols;
+        currRow[0] = 0.0;
+        dirs[offset] = START;
+        for (int col = 1; col < cols; col++) {
+          final int item2 = seq2[col - 1];
+          if (item1 == USED || item2 == USED) {
+            currRow[col] = 0.0;
+            dirs[offset + col] = START;
+            continue;
+          }
+          final double match = prevRow[col - 1] +
+              (item1 == item2 ? 1.0 : penalty);
+          final double delete = prevRow[col] + gap;
+          final double insert = currRow[col - 1] + gap;
+          double score;
+          byte dir;
+          if (match < 0.0 && delete < 0.0 && insert < 0.0) {
+            score = 0.0;
+            dir = START;
+          }
+          else if (match >= delete && match >= insert) {
+            score = match;
+            dir = UP_LEFT;
+          }
+          else if (delete >= insert) {
+            score = delete;
+            dir = UP;
+          }
+          else {
+            score = insert;
+            dir = LEFT;
+          }
+          // The traceback stops at the first zero-score cell
+          if (score == 0.0) {
+            dir = START;
+          }
+          currRow[col] = score;
+          dirs[offset + col] = dir;
+          if (score > bestScore) {
+            bestScore = score;
+            bestRow = row;
+            bestCol = col;
+          }
+        }
+        final double[] swap = prevRow;
+        prevRow = currRow;
+        currRow = swap;
+      }
+      if (bestScore < minScore || bestScore == 0.0) {
+        break;
+      }
+
+      // Trace back from the best cell
+      int r = bestRow;
+      int c = bestCol;
+      int numOps = 0;
+      while (dirs[r * cols + c] != START) {
+        final byte dir = dirs[r * cols + c];
+        if (dir == UP_LEFT) {
+          ops[numOps++] = seq1[r - 1] == seq2[c - 1] ?
+              TokenAlignment.MATCH : TokenAlignment.SUBSTITUTE;
+          r--;
+          c--;
+        }
+        else if (dir == UP) {
+          ops[numOps++] = TokenAlignment.DELETE;
+          r--;
+        }
+        else {
+          assert dir == LEFT : "unknown dir: " + dir;
+          ops[numOps++] = TokenAlignment.INSERT;
+          c--;
+        }
+      }
+      final byte[] alignmentOps = new byte[numOps];
+      for (int i = 0; i < numOps; i++) {
+        alignmentOps[i] = ops[numOps - 1 - i];
+      }
+      alignments.add(new TokenAlignment(
+          r, bestRow, c, bestCol, bestScore, alignmentOps));
+
+      // Aligned tokens cannot be part of another alignment
+      Arrays.fill(seq1, r, bestRow, USED);
+      Arrays.fill(seq2, c, bestCol, USED);
+    }
+    return alignments;
+  }
+
+}
@@ -0,0 +1,48 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.util.*;
+
+/**
+ * Local alignment between two token ID sequences, found by
+ * {@link TokenAligner}.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class TokenAlignment {
+  /** Equal tokens in both sequences. */
+  public static final byte MATCH = 1;
+  /** Different tokens in both sequences. */
+  public static final byte SUBSTITUTE = 2;
+  /** A token in the first sequence aligned to a gap. */
+  public static final byte DELETE = 3;
+  /** A token in the second sequence aligned to a gap. */
+  public static final byte INSERT = 4;
+
+  /** Inclusive start of the alignment in the first sequence. */
+  public final int start1;
+  /** Exclusive end of the alignment in the first sequence. */
+  public final int end1;
+  /** Inclusive start of the alignment in the second sequence. */
+  public final int start2;
+  /** Exclusive end of the alignment in the second sequence. */
+  public final int end2;
+  /** Alignment score. */
+  public final double score;
+  /** Alignment operations, from start to end. */
+  public final byte[] ops;
+
+  /**
+   * Creates a new <code>TokenAlignment</code>.
+   */
+  public TokenAlignment(final int start1, final int end1,
+                        final int start2, final int end2,
+                        final double score, final byte[] ops) {
+    this.start1 = start1;
+    this.end1 = end1;
+    this.start2 = start2;
+    this.end2 = end2;
+    this.score = score;
+    this.ops = ops;
+  }
+
+}
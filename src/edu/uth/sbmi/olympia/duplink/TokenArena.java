@@ -0,0 +1,152 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.util.*;
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Off-heap store of the token IDs and character offsets of a sequence of
+ * documents.  Each token takes three <code>int</code>s (ID, start character,
+ * end character) in a direct {@link ByteBuffer}, so the alignment phase does
+ * not keep a {@link edu.uth.sbmi.olympia.text.Token} object per token alive.
+ * A single arena holds at most {@link #MAX_TOKENS} tokens.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class TokenArena {
+  private static final Log log = new Log(TokenArena.class);
+  private static final int INTS_PER_TOKEN = 3;
+  public static final int MAX_TOKENS = Integer.MAX_VALUE / (4 * INTS_PER_TOKEN);
+
+  private IntBuffer tokens;
+  private int numTokens = 0;
+  private int[] documentStarts = new int[16];
+  private int numDocuments = 0;
+
+  /**
+   * Creates a new, empty <code>TokenArena</code>.
+   */
+  public TokenArena() {
+    this(1024);
+  }
+
+  /**
+   * Creates a new, empty <code>TokenArena</code> with room for
+   * <var>capacity</var> tokens before it needs to grow.
+   */
+  public TokenArena(final int capacity) {
+    tokens = allocate(Math.max(capacity, 1));
+  }
+
+  /**
+   * Allocates a direct buffer for <var>capacity</var> tokens.
+   */
+  private static IntBuffer allocate(final int capacity) {
+    return ByteBuffer.allocateDirect(4 * INTS_PER_TOKEN * capacity)
+                     .order(ByteOrder.nativeOrder()).asIntBuffer();
+  }
+
+  /**
+   * Starts a new document, to which subsequent {@link #addToken} calls
+   * append.  Returns the index of the document.
+   */
+  public int addDocument() {
+    if (numDocuments + 1 >= documentStarts.length) {
+      documentStarts = Arrays.copyOf(documentStarts, 2 * documentStarts.length);
+    }
+    documentStarts[numDocuments] = numTokens;
+    documentStarts[numDocuments + 1] = numTokens;
+    return numDocuments++;
+  }
+
+  /**
+   * Appends a token to the last added document.
+   */
+  public void addToken(final int tokenID, final int startChar,
+                       final int endChar) {
+    assert numDocuments > 0;
+    if (numTokens == tokens.capacity() / INTS_PER_TOKEN) {
+      if (numTokens == MAX_TOKENS) {
+        throw new IllegalStateException("token arena is full");
+      }
+      final IntBuffer grown = allocate(
+          (int) Math.min(2L * numTokens, MAX_TOKENS));
+      tokens.position(0);
+      tokens.limit(INTS_PER_TOKEN * numTokens);
+      grown.put(tokens);
+      tokens = grown;
+      tokens.clear();
+    }
+    final int index = INTS_PER_TOKEN * numTokens;
+    tokens.put(index, tokenID);
+    tokens.put(index + 1, startChar);
+    tokens.put(index + 2, endChar);
+    numTokens++;
+    documentStarts[numDocuments] = numTokens;
+  }
+
+  /**
+   * Returns the number of documents in the arena.
+   */
+  public int size() {
+    return numDocuments;
+  }
+
+  /**
+   * Returns the total number of tokens in the arena.
+   */
+  public int getNumTokens() {
+    return numTokens;
+  }
+
+  /**
+   * Returns the number of tokens in the given <var>document</var>.
+   */
+  public int getTokenLength(final int document) {
+    return documentStarts[document + 1] - documentStarts[document];
+  }
+
+  /**
+   * Returns the ID of the <var>token</var>th token of the given
+   * <var>document</var>.
+   */
+  public int getTokenID(final int document, final int token) {
+    return tokens.get(INTS_PER_TOKEN * (documentStarts[document] + token));
+  }
+
+  /**
+   * Returns the (inclusive) start character offset of the <var>token</var>th
+   * token of the given <var>document</var>.
+   */
+  public int getStartCharOffset(final int document, final int token) {
+    return tokens.get(INTS_PER_TOKEN * (documentStarts[document] + token) + 1);
+  }
+
+  /**
+   * Returns the (exclusive) end character offset of the <var>token</var>th
+   * token of the given <var>document</var>.
+   */
+  public int getEndCharOffset(final int document, final int token) {
+    return tokens.get(INTS_PER_TOKEN * (documentStarts[document] + token) + 2);
+  }
+
+  /**
+   * Copies the IDs of the tokens <code>[start, end)</code> of the given
+   * <var>document</var> into the beginning of <var>dest</var>, growing it if
+   * necessary.  Returns the array that was written to.
+   */
+  public int[] getTokenIDs(final int document, final int start, final int end,
+                           int[] dest) {
+    if (dest.length < end - start) {
+      dest = new int[end - start];
+    }
+    int index = INTS_PER_TOKEN * (documentStarts[document] + start);
+    for (int i = 0; i < end - start; i++) {
+      dest[i] = tokens.get(index);
+      index += INTS_PER_TOKEN;
+    }
+    return dest;
+  }
+
+}
@@ -0,0 +1,86 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.text.*;
+import edu.uth.sbmi.olympia.util.*;
+
+import java.util.*;
+
+/**
+ * Regression test for {@link DupLink} with both anchoring and boilerplate
+ * masking: a source document <code>P + template + P</code> is split into
+ * two source runs by the mask, and both runs have anchors on the single
+ * copy of <code>P</code> in the destination.  The second run must not
+ * re-link the destination tokens already linked by the first.  Run by
+ * <code>ant test</code>.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class AnchoredBoilerplateTest {
+  private static final Log log = new Log(AnchoredBoilerplateTest.class);
+  private static final String P = "the patient reports intermittent chest " +
+      "pain radiating to the left arm since last tuesday with mild " +
+      "shortness of breath on exertion and no syncope";
+  private static final String TEMPLATE = "this note was generated from the " +
+      "standard clinic template please review all fields carefully before " +
+      "signing the final report thank you";
+
+  public static void main(String[] argv) throws Exception {
+    argv = Config.init("olympia.properties", argv);
+
+    final Document template = newDocument("0", TEMPLATE);
+    final List<Token> tokens = template.getTokens();
+    final long[] wordHashes = new long[tokens.size()];
+    for (int i = 0; i < wordHashes.length; i++) {
+      wordHashes[i] = BoilerplateIndex.hashWord(tokens.get(i).asRawString());
+    }
+    final long[] shingles = BoilerplateIndex.getShingles(wordHashes,
+        wordHashes.length, BoilerplateBuilder.DEFAULT_SHINGLE_LENGTH);
+    Arrays.sort(shingles);
+    final BoilerplateIndex boilerplate = new BoilerplateIndex(
+        BoilerplateBuilder.DEFAULT_SHINGLE_LENGTH, 2, shingles);
+
+    final Corpus corpus = new Corpus(Arrays.asList(
+        newDocument("1", P + "\n" + TEMPLATE + "\n" + P + "\n"),
+        newDocument("2", "follow up visit\n" + P + "\nplan continue aspirin\n")));
+    final DupLink dupLink = new DupLink(-1.0, -2.0, 5.0);
+    dupLink.setAnchorLength(5);
+    dupLink.setBoilerplate(boilerplate);
+    final List<LinkRecord> records = dupLink.findLinks(corpus);
+
+    final List<LinkRecord> dest = new ArrayList<>();
+    for (final LinkRecord record : records) {
+      if (record.getDestDocument() == 1) {
+        dest.add(record);
+      }
+    }
+    check(dest.size() == 1, "expected 1 link into document 2, found " +
+        dest.size());
+    final LinkRecord record = dest.get(0);
+    check(record.getDestEnd() - record.getDestStart() ==
+        record.getSourceEnd() - record.getSourceStart(),
+        "expected an exact copy of P");
+    log.info("OK: {0} link(s)", records.size());
+  }
+
+  /**
+   * Returns a tokenized {@link Document} with the given ID and text.
+   */
+  private static Document newDocument(final String documentID,
+                                      final String text) {
+    final Document document = new Document(text);
+    document.setDocumentID(documentID);
+    document.annotate(Token.TYPE);
+    return document;
+  }
+
+  /**
+   * Fails with the given <var>message</var> unless the
+   * <var>condition</var> holds.
+   */
+  private static void check(final boolean condition, final String message) {
+    if (condition == false) {
+      throw new AssertionError(message);
+    }
+  }
+
+}
@@ -0,0 +1,132 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.text.*;
+import edu.uth.sbmi.olympia.util.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Test of {@link Checkpoint}: a run stopped by the time limit and resumed
+ * from its checkpoint produces the same links as an uninterrupted run, and a
+ * checkpoint is rejected for other parameters or an edited document of the
+ * same length.  Run by <code>ant test</code>.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class CheckpointTest {
+  private static final Log log = new Log(CheckpointTest.class);
+  private static final String P = "the patient reports intermittent chest " +
+      "pain radiating to the left arm since last tuesday with mild " +
+      "shortness of breath on exertion and no syncope";
+  private static final String Q = "plan continue aspirin and metoprolol " +
+      "follow up in two weeks with repeat lipid panel and stress test";
+
+  public static void main(String[] argv) throws Exception {
+    argv = Config.init("olympia.properties", argv);
+
+    final Corpus corpus = newCorpus("syncope");
+    final List<LinkRecord> expected = new DupLink(-1.0, -2.0, 5.0)
+        .findLinks(corpus);
+    check(expected.isEmpty() == false, "expected some links");
+
+    final Place file = Place.fromTempFile();
+    try {
+      // A time limit of 0 stops after the first target
+      final Checkpoint stopped = new Checkpoint(file, 1000, 0L);
+      new DupLink(-1.0, -2.0, 5.0).findLinks(corpus, stopped);
+      check(stopped.isComplete(corpus) == false, "expected an early stop");
+      check(stopped.getNextTarget() == 2, "expected 1 completed target, " +
+          "found " + (stopped.getNextTarget() - 1));
+
+      final DupLink dupLink = new DupLink(-1.0, -2.0, 5.0);
+      final Checkpoint resumed = new Checkpoint(file, 1000, null);
+      resumed.read(dupLink, corpus);
+      final List<LinkRecord> records = dupLink.findLinks(corpus, resumed);
+      check(resumed.isComplete(corpus), "expected a complete run");
+      check(toStrings(records).equals(toStrings(expected)),
+          "resumed links differ: " + toStrings(records) + " vs " +
+          toStrings(expected));
+
+      checkRejected(file, new DupLink(-1.0, -2.0, 6.0), corpus,
+          "another minScore");
+      // Same token length, different token
+      checkRejected(file, new DupLink(-1.0, -2.0, 5.0), newCorpus("fever"),
+          "an edited document");
+    }
+    finally {
+      file.delete();
+      file.getSibling(file.getName() + ".tmp").delete();
+    }
+    log.info("OK: {0} link(s)", expected.size());
+  }
+
+  /**
+   * Checks that the checkpoint <var>file</var> cannot be resumed by the
+   * <var>dupLink</var> on the <var>corpus</var>.
+   */
+  private static void checkRejected(final Place file, final DupLink dupLink,
+                                    final Corpus corpus,
+                                    final String reason) {
+    try {
+      new Checkpoint(file, 1000, null).read(dupLink, corpus);
+    }
+    catch (IOException ioe) {
+      return;
+    }
+    throw new AssertionError("checkpoint accepted for " + reason);
+  }
+
+  /**
+   * Returns a {@link Corpus} of three notes copying each other, the last
+   * ending with the given <var>word</var>.
+   */
+  private static Corpus newCorpus(final String word) {
+    return new Corpus(Arrays.asList(
+        newDocument("1", P + "\n"),
+        newDocument("2", "follow up visit\n" + P + "\n" + Q + "\n"),
+        newDocument("3", Q + "\nreviewed\n" + P + " " + word + "\n")));
+  }
+
+  /**
+   * Returns a printable form of every {@link LinkRecord}, with its
+   * differences.
+   */
+  private static List<String> toStrings(final List<LinkRecord> records) {
+    final List<String> strings = new ArrayList<>();
+    for (final LinkRecord record : records) {
+      final StringBuilder string = new StringBuilder();
+      string.append(record.getSourceDocument() + ":[" +
+          record.getSourceStart() + "," + record.getSourceEnd() + ") -> " +
+          record.getDestDocument() + ":[" + record.getDestStart() + "," +
+          record.getDestEnd() + ")");
+      for (int i = 0; i < record.getNumDiffs(); i++) {
+        string.append(" " + Arrays.toString(record.getDiff(i)));
+      }
+      strings.add(string.toString());
+    }
+    return strings;
+  }
+
+  /**
+   * Returns a tokenized {@link Document} with the given ID and text.
+   */
+  private static Document newDocument(final String documentID,
+                                      final String text) {
+    final Document document = new Document(text);
+    document.setDocumentID(documentID);
+    document.annotate(Token.TYPE);
+    return document;
+  }
+
+  /**
+   * Fails with the given <var>message</var> unless the
+   * <var>condition</var> holds.
+   */
+  private static void check(final boolean condition, final String message) {
+    if (condition == false) {
+      throw new AssertionError(message);
+    }
+  }
+
+}
@@ -0,0 +1,74 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.text.*;
+import edu.uth.sbmi.olympia.util.*;
+
+import java.util.*;
+
+/**
+ * Regression test for {@link DupLink} with sentence alignment on empty and
+ * whitespace-only notes, which the newline splitter cannot annotate: the
+ * run must not fail, and the copy between the other notes must still be
+ * linked.  Run by <code>ant test</code>.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class EmptySentenceNoteTest {
+  private static final Log log = new Log(EmptySentenceNoteTest.class);
+  private static final String SPLITTER =
+      "edu.uth.sbmi.olympia.text.annotators.NewlineSentenceSegmenter";
+  private static final String P = "the patient reports intermittent chest " +
+      "pain radiating to the left arm since last tuesday with mild " +
+      "shortness of breath on exertion and no syncope";
+
+  public static void main(String[] argv) throws Exception {
+    argv = Config.init("olympia.properties", argv);
+    Config.get("edu.uth.sbmi.olympia.text.annotator.SENTENCE").set(SPLITTER);
+
+    final List<Document> documents = Arrays.asList(
+        newDocument("1", P + "\n"),
+        newDocument("2", ""),
+        newDocument("3", " \n\n  \n"),
+        newDocument("4", "follow up visit\n" + P + "\n"));
+    final Corpus corpus = new Corpus(documents);
+    for (int d = 0; d < corpus.size(); d++) {
+      check(corpus.getSentenceStarts(d) != null, "no sentences annotated: " +
+          corpus.getDocumentID(d));
+    }
+    check(Arrays.equals(corpus.getSentenceStarts(1), new int[] {0}),
+        "expected a single empty sentence");
+
+    final DupLink dupLink = new DupLink(-1.0, -2.0, 5.0);
+    dupLink.setSentenceSplitter(SPLITTER);
+    final List<LinkRecord> records = dupLink.findLinks(corpus);
+    check(records.size() == 1, "expected 1 link, found " + records.size());
+    final LinkRecord record = records.get(0);
+    check(record.getSourceDocument() == 0 && record.getDestDocument() == 3,
+        "expected a link from note 1 to note 4");
+    log.info("OK: {0} link(s)", records.size());
+  }
+
+  /**
+   * Returns a {@link Document} with the given ID and text, with its tokens
+   * and sentences annotated.
+   */
+  private static Document newDocument(final String documentID,
+                                      final String text) {
+    final Document document = new Document(text);
+    document.setDocumentID(documentID);
+    document.annotate(Token.TYPE);
+    RunDupLink.annotateSentences(document);
+    return document;
+  }
+
+  /**
+   * Fails with the given <var>message</var> unless the
+   * <var>condition</var> holds.
+   */
+  private static void check(final boolean condition, final String message) {
+    if (condition == false) {
+      throw new AssertionError(message);
+    }
+  }
+
+}
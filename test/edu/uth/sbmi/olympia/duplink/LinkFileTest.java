@@ -0,0 +1,184 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.text.*;
+import edu.uth.sbmi.olympia.util.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Round-trip test of {@link LinkFile}: the links of a {@link DupLink} run
+ * written to a link file must read back with the same documents, clusters,
+ * offsets, and differences, and <code>duplink-query --text</code>
+ * ({@link QueryLinks}) must print the same annotations as
+ * {@link RunDupLink}.  Run by <code>ant test</code>.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class LinkFileTest {
+  private static final Log log = new Log(LinkFileTest.class);
+  private static final String HEADER =
+      "document_id duplicate_id char_start char_end overlap_per\n";
+  private static final String P = "the patient reports intermittent chest " +
+      "pain radiating to the left arm since last tuesday with mild " +
+      "shortness of breath on exertion and no syncope";
+  private static final String Q = "plan continue aspirin and metoprolol " +
+      "follow up in two weeks with repeat lipid panel and stress test";
+
+  public static void main(String[] argv) throws Exception {
+    argv = Config.init("olympia.properties", argv);
+
+    // IDs out of order, so the lookups cannot rely on the document order
+    final Corpus corpus = new Corpus(Arrays.asList(
+        newDocument("30", P + "\n" + Q + "\n"),
+        newDocument("4", "follow up visit\n" +
+                         P.replace("tuesday", "monday") + "\n"),
+        newDocument("12", Q + "\nnew complaint of fever\n" + P + "\n")));
+    final List<LinkRecord> records = new DupLink(-1.0, -2.0, 5.0)
+        .findLinks(corpus);
+    int numDiffs = 0;
+    for (final LinkRecord record : records) {
+      numDiffs += record.getNumDiffs();
+    }
+    check(records.size() >= 3, "expected at least 3 links, found " +
+        records.size());
+    check(numDiffs > 0, "expected some differences");
+
+    final StringWriter expected = new StringWriter();
+    expected.write(HEADER);
+    RunDupLink.writeAnnotations(records, corpus, expected);
+
+    final Place file = Place.fromTempFile();
+    final Place text = Place.fromTempFile();
+    text.delete();
+    try {
+      LinkFile.write(records, corpus, file);
+      final LinkFile links = LinkFile.open(file);
+      try {
+        checkLinks(links, records, corpus);
+        final StringWriter annotations = new StringWriter();
+        links.writeAnnotations(annotations);
+        check(annotations.toString().equals(expected.toString()),
+            "annotations differ:\n" + annotations + "vs\n" + expected);
+      }
+      finally {
+        links.close();
+      }
+
+      QueryLinks.main(new String[] {file.getPath(), "--text", text.getPath()});
+      check(text.readString().equals(expected.toString()),
+          "duplink-query annotations differ:\n" + text.readString() +
+          "vs\n" + expected);
+    }
+    finally {
+      file.delete();
+      text.delete();
+    }
+    log.info("OK: {0} link(s), {1} difference(s)", records.size(), numDiffs);
+  }
+
+  /**
+   * Checks that the <var>links</var> read back hold the documents of the
+   * <var>corpus</var> and exactly the <var>records</var>, in character
+   * offsets.
+   */
+  private static void checkLinks(final LinkFile links,
+                                 final List<LinkRecord> records,
+                                 final Corpus corpus) {
+    final TokenArena arena = corpus.getArena();
+    check(links.getNumDocuments() == corpus.size(), "expected " +
+        corpus.size() + " documents, found " + links.getNumDocuments());
+    check(links.getNumLinks() == records.size(), "expected " +
+        records.size() + " links, found " + links.getNumLinks());
+    for (int d = 0; d < corpus.size(); d++) {
+      check(links.getDocumentID(d).equals(corpus.getDocumentID(d)),
+          "wrong ID for document " + d);
+      check(links.findDocument(corpus.getDocumentID(d)) == d,
+          "document not found: " + corpus.getDocumentID(d));
+    }
+    check(links.findDocument("5") == -1, "found a missing document");
+
+    final Set<Integer> found = new HashSet<>();
+    for (final LinkRecord record : records) {
+      final int dest = record.getDestDocument();
+      final int src = record.getSourceDocument();
+      final int start = arena.getStartCharOffset(dest, record.getDestStart());
+      final int end = arena.getEndCharOffset(dest, record.getDestEnd() - 1);
+      final int lastLink = dest + 1 < links.getNumDocuments() ?
+          links.getFirstLink(dest + 1) : links.getNumLinks();
+      int link = -1;
+      for (int l = links.getFirstLink(dest); l < lastLink; l++) {
+        if (links.getStart(l) == start && links.getEnd(l) == end) {
+          link = l;
+        }
+      }
+      check(link >= 0 && found.add(link), "link not found: " + start +
+          "-" + end + " in " + corpus.getDocumentID(dest));
+      check(links.getDocument(link) == dest, "wrong link document");
+
+      final int cluster = links.getCluster(link);
+      check(links.getSourceDocument(cluster) == src &&
+          links.getSourceStart(cluster) ==
+              arena.getStartCharOffset(src, record.getSourceStart()) &&
+          links.getSourceEnd(cluster) ==
+              arena.getEndCharOffset(src, record.getSourceEnd() - 1),
+          "wrong source for link " + link);
+      boolean member = false;
+      for (int i = 0; i < links.getNumMembers(cluster); i++) {
+        member |= links.getMember(cluster, i) == link;
+      }
+      check(member, "link " + link + " is not a member of its cluster");
+      check(Arrays.asList(toStrings(links.findClusters(
+          links.getClusterID(cluster)))).contains(String.valueOf(cluster)),
+          "cluster not found: " + links.getClusterID(cluster));
+
+      check(links.getNumDiffs(link) == record.getNumDiffs(),
+          "wrong number of differences for link " + link);
+      for (int i = 0; i < record.getNumDiffs(); i++) {
+        final int[] diff = record.getDiff(i);
+        final int[] expected = {
+            diff[0] < 0 ? -1 : arena.getStartCharOffset(src, diff[0]),
+            diff[0] < 0 ? -1 : arena.getEndCharOffset(src, diff[1] - 1),
+            diff[2] < 0 ? -1 : arena.getStartCharOffset(dest, diff[2]),
+            diff[2] < 0 ? -1 : arena.getEndCharOffset(dest, diff[3] - 1)};
+        check(Arrays.equals(links.getDiff(link, i), expected),
+            "wrong difference " + i + " for link " + link + ": " +
+            Arrays.toString(links.getDiff(link, i)) + " vs " +
+            Arrays.toString(expected));
+      }
+    }
+  }
+
+  /**
+   * Returns the printable forms of the <var>values</var>.
+   */
+  private static String[] toStrings(final int[] values) {
+    final String[] strings = new String[values.length];
+    for (int i = 0; i < values.length; i++) {
+      strings[i] = String.valueOf(values[i]);
+    }
+    return strings;
+  }
+
+  /**
+   * Returns a tokenized {@link Document} with the given ID and text.
+   */
+  private static Document newDocument(final String documentID,
+                                      final String text) {
+    final Document document = new Document(text);
+    document.setDocumentID(documentID);
+    document.annotate(Token.TYPE);
+    return document;
+  }
+
+  /**
+   * Fails with the given <var>message</var> unless the
+   * <var>condition</var> holds.
+   */
+  private static void check(final boolean condition, final String message) {
+    if (condition == false) {
+      throw new AssertionError(message);
+    }
+  }
+
+}
@@ -0,0 +1,130 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.util.*;
+
+import java.util.*;
+
+/**
+ * Test of {@link ScoreBound} on random source runs and target segments: the
+ * bound must never be below the best Smith-Waterman score, computed here with
+ * a full score matrix, nor above the multiset intersection of the tokens.
+ * Run by <code>ant test</code>.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class ScoreBoundTest {
+  private static final Log log = new Log(ScoreBoundTest.class);
+  private static final double[] SCORES = {0.0, -0.5, -1.0, -2.0, -5.0, -10.0};
+
+  public static void main(String[] argv) throws Exception {
+    argv = Config.init("olympia.properties", argv);
+
+    final Random random = new Random(11);
+    int tight = 0;
+    final int numTrials = 2000;
+    for (int trial = 0; trial < numTrials; trial++) {
+      final int vocabularySize = 2 + random.nextInt(20);
+      final double gap = SCORES[random.nextInt(SCORES.length)];
+      final double penalty = SCORES[random.nextInt(SCORES.length)];
+      final TokenArena arena = new TokenArena();
+      final int[][] documents = new int[2][];
+      for (int d = 0; d < 2; d++) {
+        documents[d] = new int[random.nextInt(60)];
+        arena.addDocument();
+        for (int i = 0; i < documents[d].length; i++) {
+          // Half of the target copies the source, with some edits
+          documents[d][i] = d == 1 && i < documents[0].length &&
+              random.nextBoolean() ? documents[0][i] :
+              random.nextInt(vocabularySize);
+          arena.addToken(documents[d][i], i, i + 1);
+        }
+      }
+      final int[] run = randomRange(random, documents[0].length);
+      final int[] segment = randomRange(random, documents[1].length);
+
+      final ScoreBound scoreBound = new ScoreBound(vocabularySize, gap,
+          penalty);
+      // A different source first, so its counts must be cleared
+      scoreBound.setSource(arena, 1, 0, documents[1].length);
+      scoreBound.upperBound(arena, 0, 0, documents[0].length);
+      scoreBound.setSource(arena, 0, run[0], run[1]);
+      final double bound = scoreBound.upperBound(arena, 1,
+          segment[0], segment[1]);
+
+      final int[] seq1 = Arrays.copyOfRange(documents[0], run[0], run[1]);
+      final int[] seq2 = Arrays.copyOfRange(documents[1],
+          segment[0], segment[1]);
+      final double score = smithWaterman(seq1, seq2, gap, penalty);
+      check(bound >= score, "bound " + bound + " below score " + score +
+          " for " + Arrays.toString(seq1) + " and " + Arrays.toString(seq2) +
+          " (gap " + gap + ", penalty " + penalty + ")");
+      final int intersection = intersection(seq1, seq2, vocabularySize);
+      check(bound <= intersection, "bound " + bound + " above the " +
+          "intersection " + intersection);
+      if (bound < intersection) {
+        tight++;
+      }
+    }
+    log.info("OK: {0} of {1} bound(s) below the intersection", tight,
+        numTrials);
+  }
+
+  /**
+   * Returns a random range <code>{start, end}</code> within
+   * <code>[0, length)</code>.
+   */
+  private static int[] randomRange(final Random random, final int length) {
+    final int start = random.nextInt(length + 1);
+    return new int[] {start, start + random.nextInt(length - start + 1)};
+  }
+
+  /**
+   * Returns the best local alignment score of the sequences, with 1.0 for
+   * equal tokens.
+   */
+  private static double smithWaterman(final int[] seq1, final int[] seq2,
+                                      final double gap,
+                                      final double penalty) {
+    final double[][] scores = new double[seq1.length + 1][seq2.length + 1];
+    double best = 0.0;
+    for (int i = 1; i <= seq1.length; i++) {
+      for (int j = 1; j <= seq2.length; j++) {
+        final double match = scores[i-1][j-1] +
+            (seq1[i-1] == seq2[j-1] ? 1.0 : penalty);
+        scores[i][j] = Math.max(0.0, Math.max(match,
+            Math.max(scores[i-1][j] + gap, scores[i][j-1] + gap)));
+        best = Math.max(best, scores[i][j]);
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Returns the size of the multiset intersection of the sequences.
+   */
+  private static int intersection(final int[] seq1, final int[] seq2,
+                                  final int vocabularySize) {
+    final int[] counts = new int[vocabularySize];
+    for (final int id : seq1) {
+      counts[id]++;
+    }
+    int intersection = 0;
+    for (final int id : seq2) {
+      if (counts[id]-- > 0) {
+        intersection++;
+      }
+    }
+    return intersection;
+  }
+
+  /**
+   * Fails with the given <var>message</var> unless the
+   * <var>condition</var> holds.
+   */
+  private static void check(final boolean condition, final String message) {
+    if (condition == false) {
+      throw new AssertionError(message);
+    }
+  }
+
+}
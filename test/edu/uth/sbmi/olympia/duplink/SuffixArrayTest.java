@@ -0,0 +1,146 @@
+package edu.uth.sbmi.olympia.duplink;
+
+import edu.uth.sbmi.olympia.util.*;
+
+import java.util.*;
+
+/**
+ * Test of {@link SuffixArray#findRepeats} on random documents copying parts
+ * of each other: without a source limit the repeats must be exactly the
+ * maximal exact repeats found by comparing every pair of positions, and with
+ * a limit they must be a subset of those, at most one per source per
+ * suffix.  Run by <code>ant test</code>.
+ *
+ * @author Kirk Roberts - kirk.roberts@uth.tmc.edu
+ */
+public class SuffixArrayTest {
+  private static final Log log = new Log(SuffixArrayTest.class);
+  private static final int VOCABULARY_SIZE = 5;
+  private static final int MIN_LENGTH = 3;
+
+  public static void main(String[] argv) throws Exception {
+    argv = Config.init("olympia.properties", argv);
+
+    final Random random = new Random(7);
+    int total = 0;
+    for (int trial = 0; trial < 20; trial++) {
+      final int[][] documents = newDocuments(random, 2 + random.nextInt(10));
+      final TokenArena arena = new TokenArena();
+      int numTokens = 0;
+      for (final int[] document : documents) {
+        arena.addDocument();
+        for (int i = 0; i < document.length; i++) {
+          arena.addToken(document[i], i, i + 1);
+        }
+        numTokens += document.length;
+      }
+      final SuffixArray suffixArray = new SuffixArray(arena, VOCABULARY_SIZE);
+
+      final List<String> expected = bruteForce(documents);
+      final List<String> all = toStrings(
+          suffixArray.findRepeats(MIN_LENGTH, 0));
+      check(all.equals(expected), "repeats differ from brute force: " +
+          all + " vs " + expected);
+      total += all.size();
+
+      for (final int maxSources : new int[] {1, 2, 8}) {
+        final List<String> capped = toStrings(
+            suffixArray.findRepeats(MIN_LENGTH, maxSources));
+        check(new HashSet<>(all).containsAll(capped),
+            "capped repeats are not maximal exact repeats: " + capped);
+        check(capped.size() <= (maxSources + 1) * numTokens,
+            "too many capped repeats: " + capped.size());
+      }
+    }
+    log.info("OK: {0} repeat(s)", total);
+  }
+
+  /**
+   * Returns <var>numDocuments</var> random documents, each made of random
+   * tokens and of (sometimes edited) copies of parts of earlier documents.
+   */
+  private static int[][] newDocuments(final Random random,
+                                      final int numDocuments) {
+    final int[][] documents = new int[numDocuments][];
+    for (int d = 0; d < numDocuments; d++) {
+      final List<Integer> tokens = new ArrayList<>();
+      final int length = random.nextInt(40);
+      while (tokens.size() < length) {
+        if (d > 0 && random.nextBoolean()) {
+          final int[] source = documents[random.nextInt(d)];
+          if (source.length == 0) {
+            continue;
+          }
+          final int start = random.nextInt(source.length);
+          final int end = Math.min(source.length,
+                                   start + 1 + random.nextInt(12));
+          for (int i = start; i < end; i++) {
+            tokens.add(random.nextInt(10) == 0 ?
+                random.nextInt(VOCABULARY_SIZE) : source[i]);
+          }
+        }
+        else {
+          tokens.add(random.nextInt(VOCABULARY_SIZE));
+        }
+      }
+      documents[d] = new int[tokens.size()];
+      for (int i = 0; i < tokens.size(); i++) {
+        documents[d][i] = tokens.get(i);
+      }
+    }
+    return documents;
+  }
+
+  /**
+   * Returns every maximal exact repeat of at least {@link #MIN_LENGTH}
+   * tokens between two documents, in the order of
+   * {@link SuffixArray#findRepeats}, by comparing every pair of positions.
+   */
+  private static List<String> bruteForce(final int[][] documents) {
+    final List<String> repeats = new ArrayList<>();
+    for (int y = 1; y < documents.length; y++) {
+      for (int x = 0; x < y; x++) {
+        final int[] src = documents[x];
+        final int[] dest = documents[y];
+        for (int j = 0; j < dest.length; j++) {
+          for (int i = 0; i < src.length; i++) {
+            if (i > 0 && j > 0 && src[i-1] == dest[j-1]) {
+              continue;
+            }
+            int length = 0;
+            while (i + length < src.length && j + length < dest.length &&
+                   src[i+length] == dest[j+length]) {
+              length++;
+            }
+            if (length >= MIN_LENGTH) {
+              repeats.add(new ExactRepeat(x, i, y, j, length).toString());
+            }
+          }
+        }
+      }
+    }
+    return repeats;
+  }
+
+  /**
+   * Returns the printable forms of the <var>repeats</var>.
+   */
+  private static List<String> toStrings(final List<ExactRepeat> repeats) {
+    final List<String> strings = new ArrayList<>();
+    for (final ExactRepeat repeat : repeats) {
+      strings.add(repeat.toString());
+    }
+    return strings;
+  }
+
+  /**
+   * Fails with the given <var>message</var> unless the
+   * <var>condition</var> holds.
+   */
+  private static void check(final boolean condition, final String message) {
+    if (condition == false) {
+      throw new AssertionError(message);
+    }
+  }
+
+}